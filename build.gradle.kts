@@ -10,11 +10,71 @@ java {
     toolchain.languageVersion.set(JavaLanguageVersion.of(8))
 }
 
+val perf: SourceSet by sourceSets.creating
+
+dependencies {
+    "perfImplementation"(gradleTestKit())
+}
+
 gradlePlugin {
     val multiVersion by plugins.creating {
         id = "org.wallentines.gradle-multi-version"
         implementationClass = "org.wallentines.gradle.mv.MultiVersionPlugin"
     }
+    val multiVersionSettings by plugins.creating {
+        id = "org.wallentines.gradle-multi-version-settings"
+        implementationClass = "org.wallentines.gradle.mv.MultiVersionSettingsPlugin"
+    }
+    testSourceSets(perf)
+}
+
+// Measures the plugin's configuration and up-to-date overhead on generated projects. Not part of check, since it
+// takes several minutes. Use -PperfIterations=N to change how many times each measurement is repeated, and
+// -PperfScenarios=small,wide to only run some scenarios.
+tasks.register<JavaExec>("performanceSuite") {
+    group = "verification"
+    description = "Measures configuration time, up-to-date build time and daemon heap usage on generated projects."
+    classpath = perf.runtimeClasspath
+    mainClass.set("org.wallentines.gradle.mv.perf.PerformanceSuite")
+
+    // TestKit starts its daemons on the same JVM as the suite, which must be one Gradle can run on
+    javaLauncher.set(javaToolchains.launcherFor {
+        languageVersion.set(JavaLanguageVersion.of(JavaVersion.current().majorVersion))
+    })
+
+    val workDir = layout.buildDirectory.dir("performance")
+    val results = layout.buildDirectory.file("reports/performance/results.json")
+    val iterations = providers.gradleProperty("perfIterations").orElse("3")
+    val scenarios = providers.gradleProperty("perfScenarios").orElse("all")
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf(workDir.get().asFile.absolutePath, results.get().asFile.absolutePath, iterations.get(), scenarios.get())
+    })
+}
+
+// Runs the plugin on small generated projects and checks the results, including running built jars on several JDKs.
+// Not part of check, since it needs Java 8, 11, 17 and 21 toolchains. Use -PfunctionalChecks=launcherJar to only run
+// some checks.
+tasks.register<JavaExec>("functionalChecks") {
+    group = "verification"
+    description = "Builds generated projects with the plugin and checks the results."
+    classpath = perf.runtimeClasspath
+    mainClass.set("org.wallentines.gradle.mv.perf.FunctionalChecks")
+
+    // TestKit starts its daemons on the same JVM as the checks, which must be one Gradle can run on
+    javaLauncher.set(javaToolchains.launcherFor {
+        languageVersion.set(JavaLanguageVersion.of(JavaVersion.current().majorVersion))
+    })
+
+    val workDir = layout.buildDirectory.dir("functionalChecks")
+    val checks = providers.gradleProperty("functionalChecks").orElse("all")
+    val executables = listOf(8, 11, 17, 21).map { version ->
+        javaToolchains.launcherFor { languageVersion.set(JavaLanguageVersion.of(version)) }.map {
+            "$version=${it.executablePath.asFile.absolutePath}"
+        }
+    }
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf(workDir.get().asFile.absolutePath, checks.get()) + executables.map { it.get() }
+    })
 }
 
 publishing {
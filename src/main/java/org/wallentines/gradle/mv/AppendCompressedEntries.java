@@ -0,0 +1,206 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.jvm.tasks.Jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Appends the entries of a pre-compressed archive to a jar after it is written. Entries are copied between the files
+ * as raw bytes, including their compressed data, so nothing is decompressed or compressed again. Entries which are
+ * already in the jar are skipped, so the jar's own entries take precedence. Zip64 archives are not supported.
+ */
+class AppendCompressedEntries implements Action<Task> {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int HAS_DATA_DESCRIPTOR = 0x08;
+
+    private final Provider<RegularFile> archive;
+
+    AppendCompressedEntries(Provider<RegularFile> archive) {
+        this.archive = archive;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        File jar = ((Jar) task).getArchiveFile().get().getAsFile();
+        File merged = new File(task.getTemporaryDir(), jar.getName());
+
+        try {
+            merge(jar, archive.get().getAsFile(), merged);
+            Files.move(merged.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            throw new GradleException("Unable to append compressed resources to " + jar + "!", ex);
+        }
+    }
+
+
+    private static void merge(File jar, File archive, File out) throws IOException {
+
+        try(FileChannel jarChannel = FileChannel.open(jar.toPath());
+            FileChannel archiveChannel = FileChannel.open(archive.toPath());
+            FileChannel outChannel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            List<Entry> jarEntries = readEntries(jarChannel);
+            List<Entry> archiveEntries = readEntries(archiveChannel);
+
+            Set<String> names = new HashSet<>();
+            List<ByteBuffer> centralDirectory = new ArrayList<>();
+
+            for(Entry entry : jarEntries) {
+                names.add(entry.name);
+                centralDirectory.add(entry.copy(jarChannel, outChannel));
+            }
+            for(Entry entry : archiveEntries) {
+                if(names.add(entry.name)) centralDirectory.add(entry.copy(archiveChannel, outChannel));
+            }
+
+            long centralDirectoryOffset = outChannel.position();
+            for(ByteBuffer record : centralDirectory) {
+                writeFully(outChannel, record);
+            }
+            long centralDirectorySize = outChannel.position() - centralDirectoryOffset;
+
+            if(centralDirectory.size() >= 0xFFFF || outChannel.position() >= 0xFFFFFFFFL) {
+                throw new IOException("The merged jar would need to be a Zip64 archive, which is not supported!");
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIRECTORY);
+            end.putShort((short) 0).putShort((short) 0);
+            end.putShort((short) centralDirectory.size()).putShort((short) centralDirectory.size());
+            end.putInt((int) centralDirectorySize).putInt((int) centralDirectoryOffset);
+            end.putShort((short) 0);
+            end.flip();
+            writeFully(outChannel, end);
+        }
+    }
+
+    private static List<Entry> readEntries(FileChannel channel) throws IOException {
+
+        // The end record is followed by a comment of at most 65535 bytes
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, 22 + 65535);
+        ByteBuffer tail = read(channel, size - tailLength, tailLength);
+
+        int end = -1;
+        for(int offset = tailLength - 22 ; offset >= 0 ; offset--) {
+            if(tail.getInt(offset) == END_OF_CENTRAL_DIRECTORY) {
+                end = offset;
+                break;
+            }
+        }
+        if(end == -1) {
+            throw new IOException("Unable to find the end of the central directory!");
+        }
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if(count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("Zip64 archives are not supported!");
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        List<Entry> out = new ArrayList<>(count);
+        int offset = 0;
+        for(int i = 0 ; i < count ; i++) {
+            if(directory.getInt(offset) != CENTRAL_DIRECTORY_ENTRY) {
+                throw new IOException("Invalid central directory entry!");
+            }
+            int length = 46 + (directory.getShort(offset + 28) & 0xFFFF) + (directory.getShort(offset + 30) & 0xFFFF) + (directory.getShort(offset + 32) & 0xFFFF);
+
+            ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer source = directory.duplicate();
+            source.position(offset).limit(offset + length);
+            record.put(source).flip();
+
+            out.add(new Entry(record));
+            offset += length;
+        }
+        return out;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer out = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while(out.hasRemaining()) {
+            if(channel.read(out, position + out.position()) == -1) {
+                throw new IOException("Unexpected end of archive!");
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    private static class Entry {
+
+        final ByteBuffer record;
+        final String name;
+
+        Entry(ByteBuffer record) {
+            this.record = record;
+            byte[] name = new byte[record.getShort(28) & 0xFFFF];
+            for(int i = 0 ; i < name.length ; i++) {
+                name[i] = record.get(46 + i);
+            }
+            this.name = new String(name, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Copies this entry's local header, data and data descriptor to the end of the output, without reading the
+         * data into memory
+         * @return This entry's central directory record, pointing at the copy
+         */
+        ByteBuffer copy(FileChannel in, FileChannel out) throws IOException {
+
+            long header = record.getInt(42) & 0xFFFFFFFFL;
+            long compressedSize = record.getInt(20) & 0xFFFFFFFFL;
+
+            ByteBuffer local = read(in, header, 30);
+            if(local.getInt(0) != LOCAL_HEADER) {
+                throw new IOException("Invalid local header for " + name + "!");
+            }
+            long end = header + 30 + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF) + compressedSize;
+            if((local.getShort(6) & HAS_DATA_DESCRIPTOR) != 0) {
+                end += read(in, end, 4).getInt(0) == DATA_DESCRIPTOR ? 16 : 12;
+            }
+
+            long position = out.position();
+            for(long copied = 0 ; copied < end - header ; ) {
+                copied += in.transferTo(header + copied, end - header - copied, out);
+            }
+
+            record.putInt(42, (int) position);
+            return record.duplicate();
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.Task;
+import org.gradle.api.tasks.StopExecutionException;
+import org.gradle.api.tasks.testing.Test;
+import org.gradle.api.tasks.testing.TestFilter;
+
+/**
+ * Excludes the test classes of a versioned test task which are not affected by any change or override, through the
+ * task's test filter when it starts running. The task's candidate class files are left alone, so they stay the same
+ * between runs. If no test class is affected, the run is recorded and the task stops without running any test, which
+ * keeps the results and reports of its previous run.
+ */
+class ApplyTestSelection implements Action<Task> {
+
+    private final TestSelection selection;
+
+    ApplyTestSelection(TestSelection selection) {
+        this.selection = selection;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        if(selection.isEmpty()) {
+            selection.record();
+            throw new StopExecutionException();
+        }
+
+        TestFilter filter = ((Test) task).getFilter();
+
+        // Gradle fails a filtered run which finds no test, which the selection's own patterns alone should not cause
+        if(filter.getIncludePatterns().isEmpty()) filter.setFailOnNoMatchingTests(false);
+        for(String name : selection.getExcluded()) {
+            filter.excludeTestsMatching(name);
+            filter.excludeTestsMatching(name + "$*");
+        }
+    }
+
+}
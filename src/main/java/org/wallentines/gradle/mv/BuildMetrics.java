@@ -0,0 +1,243 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.gradle.tooling.events.OperationResult;
+import org.gradle.tooling.events.task.TaskFailureResult;
+import org.gradle.tooling.events.task.TaskFinishEvent;
+import org.gradle.tooling.events.task.TaskSkippedResult;
+import org.gradle.tooling.events.task.TaskSuccessResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the duration, outcome, input counts and toolchain of every task registered by the plugin. The version and
+ * kind of each task are registered in the service's parameters when the task is configured, tasks which run are
+ * described further by {@link RecordMetrics}, and durations and outcomes are taken from the task completion events
+ * Gradle sends to this service. When the build finishes, a summary of each version is logged
+ * and every task is written to a JSON report.
+ */
+public abstract class BuildMetrics implements BuildService<BuildMetrics.Params>, OperationCompletionListener, AutoCloseable {
+
+    private static final Logger LOGGER = Logging.getLogger(BuildMetrics.class);
+
+    private final Map<String, TaskMetrics> tasks = new ConcurrentHashMap<>();
+
+    public interface Params extends BuildServiceParameters {
+
+        RegularFileProperty getReport();
+
+        /**
+         * The version each recorded task belongs to, by task path
+         * @return The versions of each task
+         */
+        MapProperty<String, Integer> getVersions();
+
+        /**
+         * The kind of each recorded task, such as compile, jar or test, by task path
+         * @return The kinds of each task
+         */
+        MapProperty<String, String> getKinds();
+
+    }
+
+    /**
+     * Describes a task which has started running
+     * @param path The task's path
+     * @param toolchain The toolchain the task uses, or null
+     * @param inputs The number of input files
+     * @param sources The number of source files, or -1 if the task does not compile sources
+     * @param overrides The number of files in the version's override directories, or -1 if the task has none
+     */
+    void record(String path, String toolchain, int inputs, int sources, int overrides) {
+
+        TaskMetrics metrics = getMetrics(path);
+        if(metrics == null) return;
+
+        metrics.toolchain = toolchain;
+        metrics.inputs = inputs;
+        metrics.sources = sources;
+        metrics.overrides = overrides;
+    }
+
+    @Override
+    public void onFinish(FinishEvent event) {
+
+        if(!(event instanceof TaskFinishEvent)) return;
+
+        TaskMetrics metrics = getMetrics(((TaskFinishEvent) event).getDescriptor().getTaskPath());
+        if(metrics == null) return;
+
+        OperationResult result = event.getResult();
+        metrics.duration = result.getEndTime() - result.getStartTime();
+        metrics.outcome = getOutcome(result);
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        List<TaskMetrics> finished = new ArrayList<>();
+        for(TaskMetrics metrics : tasks.values()) {
+            if(metrics.outcome != null) finished.add(metrics);
+        }
+        if(finished.isEmpty()) return;
+        finished.sort((a, b) -> a.version != b.version ? Integer.compare(a.version, b.version) : a.path.compareTo(b.path));
+
+        LOGGER.lifecycle(toTable(finished));
+
+        File report = getParameters().getReport().get().getAsFile();
+        Files.createDirectories(report.getParentFile().toPath());
+        Files.write(report.toPath(), toJson(finished).getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private TaskMetrics getMetrics(String path) {
+
+        Integer version = getParameters().getVersions().getting(path).getOrNull();
+        if(version == null) return null;
+
+        return tasks.computeIfAbsent(path, key -> new TaskMetrics(path, version, getParameters().getKinds().getting(path).getOrElse(RecordMetrics.OTHER)));
+    }
+
+    private static String getOutcome(OperationResult result) {
+
+        if(result instanceof TaskSuccessResult) {
+            TaskSuccessResult success = (TaskSuccessResult) result;
+            if(success.isFromCache()) return "FROM-CACHE";
+            if(success.isUpToDate()) return "UP-TO-DATE";
+            return "EXECUTED";
+        }
+        if(result instanceof TaskSkippedResult) {
+            return ((TaskSkippedResult) result).getSkipMessage();
+        }
+        if(result instanceof TaskFailureResult) {
+            return "FAILED";
+        }
+        return "UNKNOWN";
+    }
+
+    private static String toTable(List<TaskMetrics> finished) {
+
+        Map<Integer, VersionSummary> versions = new TreeMap<>();
+        for(TaskMetrics metrics : finished) {
+            versions.computeIfAbsent(metrics.version, v -> new VersionSummary()).add(metrics);
+        }
+
+        StringBuilder table = new StringBuilder("Multi-version build metrics:\n");
+        table.append(String.format(Locale.ROOT, "%-10s %6s %9s %11s %11s %13s %9s %10s %12s %8s %10s%n",
+                "Version", "Tasks", "Executed", "Up-to-date", "From cache", "Compile (ms)", "Jar (ms)", "Test (ms)", "Other (ms)", "Sources", "Overrides"));
+
+        for(Map.Entry<Integer, VersionSummary> entry : versions.entrySet()) {
+            VersionSummary summary = entry.getValue();
+            table.append(String.format(Locale.ROOT, "%-10s %6d %9d %11d %11d %13d %9d %10d %12d %8d %10d%n",
+                    "Java " + entry.getKey(), summary.tasks, summary.executed, summary.upToDate, summary.fromCache,
+                    summary.compile, summary.jar, summary.test, summary.other, summary.sources, summary.overrides));
+        }
+        return table.toString();
+    }
+
+    private static String toJson(List<TaskMetrics> finished) {
+
+        StringBuilder json = new StringBuilder("{\n  \"tasks\": [");
+        boolean first = true;
+        for(TaskMetrics metrics : finished) {
+            json.append(first ? "\n" : ",\n").append("    {")
+                    .append("\"path\": ").append(quote(metrics.path))
+                    .append(", \"version\": ").append(metrics.version)
+                    .append(", \"kind\": ").append(quote(metrics.kind))
+                    .append(", \"outcome\": ").append(quote(metrics.outcome))
+                    .append(", \"durationMs\": ").append(metrics.duration);
+            if(metrics.inputs >= 0) json.append(", \"inputFiles\": ").append(metrics.inputs);
+            if(metrics.sources >= 0) json.append(", \"sourceFiles\": ").append(metrics.sources);
+            if(metrics.overrides >= 0) json.append(", \"overriddenFiles\": ").append(metrics.overrides);
+            if(metrics.toolchain != null) json.append(", \"toolchain\": ").append(quote(metrics.toolchain));
+            json.append("}");
+            first = false;
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    private static class TaskMetrics {
+
+        final String path;
+        final int version;
+        final String kind;
+
+        volatile String toolchain;
+        volatile int inputs = -1;
+        volatile int sources = -1;
+        volatile int overrides = -1;
+        volatile long duration;
+        volatile String outcome;
+
+        TaskMetrics(String path, int version, String kind) {
+            this.path = path;
+            this.version = version;
+            this.kind = kind;
+        }
+    }
+
+    private static class VersionSummary {
+
+        int tasks;
+        int executed;
+        int upToDate;
+        int fromCache;
+        long compile;
+        long jar;
+        long test;
+        long other;
+        int sources;
+        int overrides;
+
+        void add(TaskMetrics metrics) {
+
+            tasks++;
+            if(metrics.outcome.equals("EXECUTED")) executed++;
+            if(metrics.outcome.equals("UP-TO-DATE")) upToDate++;
+            if(metrics.outcome.equals("FROM-CACHE")) fromCache++;
+
+            switch (metrics.kind) {
+                case RecordMetrics.COMPILE: compile += metrics.duration; break;
+                case RecordMetrics.JAR: jar += metrics.duration; break;
+                case RecordMetrics.TEST: test += metrics.duration; break;
+                default: other += metrics.duration;
+            }
+
+            if(metrics.sources > 0) sources += metrics.sources;
+            if(metrics.overrides > 0) overrides += metrics.overrides;
+        }
+    }
+
+}
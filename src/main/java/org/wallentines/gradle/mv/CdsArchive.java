@@ -0,0 +1,119 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+import org.gradle.work.DisableCachingByDefault;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a training main class on a version's toolchain, and dumps the classes it loaded into a class data sharing
+ * (AppCDS) archive. Java 13 and above dump a dynamic archive when the training run exits. Java 11 and 12 record the
+ * loaded classes during the training run, then dump a static archive from that list.
+ */
+@DisableCachingByDefault(because = "CDS archives are only valid for the exact classpath they were dumped with, which contains absolute paths")
+public abstract class CdsArchive extends DefaultTask {
+
+    /**
+     * The lowest version which can dump application classes into an archive
+     */
+    public static final int MIN_VERSION = 11;
+
+    private static final int MIN_DYNAMIC_VERSION = 13;
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    /**
+     * The classpath to train and dump with. Classes are only archived from jars, and the archive can only be used
+     * with the same classpath.
+     * @return The classpath
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    /**
+     * The main class of the training run. It must exit once it has loaded the classes which should be archived.
+     * @return The training main class
+     */
+    @Input
+    public abstract Property<String> getMainClass();
+
+    @Input
+    public abstract ListProperty<String> getArgs();
+
+    /**
+     * Extra arguments to pass to the JVM when training and dumping. Archives should be used with the same arguments.
+     * @return The JVM arguments
+     */
+    @Input
+    public abstract ListProperty<String> getJvmArgs();
+
+    @OutputFile
+    public abstract RegularFileProperty getArchive();
+
+    @TaskAction
+    public void dump() {
+
+        JavaLauncher launcher = getJavaLauncher().get();
+        int version = launcher.getMetadata().getLanguageVersion().asInt();
+        if(version < MIN_VERSION) {
+            throw new GradleException("Java " + version + " cannot dump application classes into a CDS archive!");
+        }
+
+        File archive = getArchive().get().getAsFile();
+        if(archive.exists() && !archive.delete()) {
+            throw new GradleException("Unable to delete " + archive + "!");
+        }
+
+        if(version >= MIN_DYNAMIC_VERSION) {
+            exec(launcher, "-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath(), true);
+        } else {
+            File classList = new File(getTemporaryDir(), "classes.lst");
+            exec(launcher, "-XX:DumpLoadedClassList=" + classList.getAbsolutePath(), true);
+            exec(launcher, "-Xshare:dump", false, "-XX:SharedClassListFile=" + classList.getAbsolutePath(), "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        }
+
+        if(!archive.isFile()) {
+            throw new GradleException("The training run did not write a CDS archive to " + archive + "!");
+        }
+    }
+
+    private void exec(JavaLauncher launcher, String mode, boolean train, String... extra) {
+
+        List<String> args = new ArrayList<>(getJvmArgs().get());
+        args.add(mode);
+        for(String arg : extra) args.add(arg);
+        args.add("-cp");
+        args.add(getClasspath().getAsPath());
+        if(train) {
+            args.add(getMainClass().get());
+            args.addAll(getArgs().get());
+        }
+
+        // Dumping a static archive prints statistics about every region of the archive
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        getExecOperations().exec(spec -> {
+            spec.setExecutable(launcher.getExecutablePath().getAsFile());
+            spec.setArgs(args);
+            if(!train) spec.setStandardOutput(output);
+        });
+        if(!train) getLogger().info(new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+}
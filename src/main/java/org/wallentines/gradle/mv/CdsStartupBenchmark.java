@@ -0,0 +1,163 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the startup time of each version's training run with and without its CDS archive. Each run is started a
+ * number of times after one warm-up run, and the mean and fastest wall-clock times are reported.
+ */
+@UntrackedTask(because = "Startup times should be measured every time the task is run")
+public abstract class CdsStartupBenchmark extends DefaultTask {
+
+    private final List<VersionedStartup> versionedStartups = new ArrayList<>();
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Nested
+    public List<VersionedStartup> getVersionedStartups() {
+        return versionedStartups;
+    }
+
+    /**
+     * How many times each run is measured
+     * @return The number of iterations
+     */
+    @Input
+    public abstract Property<Integer> getIterations();
+
+    @OutputFile
+    public abstract RegularFileProperty getReport();
+
+    /**
+     * Adds a version to the benchmark, using the same launcher, classpath and main class as its archive
+     * @param version The version
+     * @param archiveTask The task which dumps the version's archive
+     */
+    public void startup(int version, TaskProvider<CdsArchive> archiveTask) {
+        VersionedStartup out = getObjectFactory().newInstance(VersionedStartup.class);
+        out.getVersion().set(version);
+        out.getJavaLauncher().set(archiveTask.flatMap(CdsArchive::getJavaLauncher));
+        out.getClasspath().from(archiveTask.map(CdsArchive::getClasspath));
+        out.getMainClass().set(archiveTask.flatMap(CdsArchive::getMainClass));
+        out.getArgs().set(archiveTask.flatMap(CdsArchive::getArgs));
+        out.getJvmArgs().set(archiveTask.flatMap(CdsArchive::getJvmArgs));
+        out.getArchive().set(archiveTask.flatMap(CdsArchive::getArchive));
+        versionedStartups.add(out);
+    }
+
+    @TaskAction
+    public void measure() throws IOException {
+
+        int iterations = getIterations().get();
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ROOT, "%-10s %28s %28s %10s%n", "Version", "Without archive (mean/min)", "With archive (mean/min)", "Change"));
+
+        List<VersionedStartup> sorted = new ArrayList<>(versionedStartups);
+        sorted.sort((a, b) -> Integer.compare(a.getVersion().get(), b.getVersion().get()));
+
+        for(VersionedStartup startup : sorted) {
+
+            List<Double> without = time(startup, iterations, null);
+            List<Double> with = time(startup, iterations, startup.getArchive().get().getAsFile());
+
+            double withoutMean = mean(without);
+            double withMean = mean(with);
+            table.append(String.format(Locale.ROOT, "%-10s %28s %28s %+9.1f%%%n",
+                    "Java " + startup.getVersion().get(),
+                    String.format(Locale.ROOT, "%.1f / %.1f ms", withoutMean, Collections.min(without)),
+                    String.format(Locale.ROOT, "%.1f / %.1f ms", withMean, Collections.min(with)),
+                    (withMean - withoutMean) / withoutMean * 100));
+        }
+
+        File report = getReport().get().getAsFile();
+        Files.createDirectories(report.getParentFile().toPath());
+        Files.write(report.toPath(), table.toString().getBytes(StandardCharsets.UTF_8));
+        getLogger().lifecycle(table.toString());
+    }
+
+
+    private List<Double> time(VersionedStartup startup, int iterations, File archive) {
+
+        List<String> args = new ArrayList<>(startup.getJvmArgs().get());
+        if(archive != null) args.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        args.add("-cp");
+        args.add(startup.getClasspath().getAsPath());
+        args.add(startup.getMainClass().get());
+        args.addAll(startup.getArgs().get());
+
+        File executable = startup.getJavaLauncher().get().getExecutablePath().getAsFile();
+        List<Double> out = new ArrayList<>();
+
+        // The first run warms up the file system cache, and is not measured
+        for(int i = 0 ; i <= iterations ; i++) {
+            long start = System.nanoTime();
+            getExecOperations().exec(spec -> {
+                spec.setExecutable(executable);
+                spec.setArgs(args);
+                spec.setStandardOutput(new ByteArrayOutputStream());
+            });
+            if(i > 0) out.add((System.nanoTime() - start) / 1000000.0);
+        }
+        return out;
+    }
+
+    private static double mean(List<Double> values) {
+        double total = 0.0;
+        for(double value : values) total += value;
+        return total / values.size();
+    }
+
+
+    /**
+     * The training run of a specific version
+     */
+    public static abstract class VersionedStartup {
+
+        @Input
+        public abstract Property<Integer> getVersion();
+
+        @Nested
+        public abstract Property<JavaLauncher> getJavaLauncher();
+
+        @Classpath
+        public abstract ConfigurableFileCollection getClasspath();
+
+        @Input
+        public abstract Property<String> getMainClass();
+
+        @Input
+        public abstract ListProperty<String> getArgs();
+
+        @Input
+        public abstract ListProperty<String> getJvmArgs();
+
+        @InputFile
+        @PathSensitive(PathSensitivity.NONE)
+        public abstract RegularFileProperty getArchive();
+
+    }
+
+}
@@ -0,0 +1,293 @@
+package org.wallentines.gradle.mv;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A minimal view of a compiled class file, containing only the information the plugin needs to reason about class
+ * dependencies and the class's ABI. Method bodies are never inspected.
+ */
+class ClassFileInfo {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int ACC_PRIVATE = 0x0002;
+
+    // Attributes which are copied into the ABI as they are. They reference the constant pool, so they may change
+    // when only method bodies change, which can only cause unneeded recompilation.
+    private static final Set<String> RAW_ABI_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations",
+            "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations",
+            "RuntimeVisibleTypeAnnotations", "RuntimeInvisibleTypeAnnotations",
+            "AnnotationDefault", "PermittedSubclasses", "Record", "Module", "Deprecated"));
+
+    private final int majorVersion;
+    private final String name;
+    private final String sourceFile;
+    private final Set<String> referencedClasses;
+    private final String abi;
+
+    private ClassFileInfo(int majorVersion, String name, String sourceFile, Set<String> referencedClasses, String abi) {
+        this.majorVersion = majorVersion;
+        this.name = name;
+        this.sourceFile = sourceFile;
+        this.referencedClasses = Collections.unmodifiableSet(referencedClasses);
+        this.abi = abi;
+    }
+
+    /**
+     * Gets the class file major version (e.g. 52 for Java 8)
+     * @return The major version
+     */
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    /**
+     * Gets the internal name of the class (e.g. org/example/Main)
+     * @return The internal name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the relative path of the source file this class was compiled from (e.g. org/example/Main.java)
+     * @return The relative source path, or null if the class has no SourceFile attribute
+     */
+    public String getSourcePath() {
+        if(sourceFile == null) return null;
+
+        int index = name.lastIndexOf('/');
+        return index == -1 ? sourceFile : name.substring(0, index + 1) + sourceFile;
+    }
+
+    /**
+     * Gets the internal names of all classes referenced by this class, either directly or through member descriptors
+     * @return A set of internal class names
+     */
+    public Set<String> getReferencedClasses() {
+        return referencedClasses;
+    }
+
+    /**
+     * Gets a description of everything other classes can compile against: the class's access flags, supertypes,
+     * signature and annotations, and every non-private field and method with its constant value, signature, exceptions
+     * and annotations. Two versions of a class with the same ABI can be swapped without recompiling their dependents.
+     * @return The class's ABI, as a string which is only meant to be compared or hashed
+     */
+    public String getAbi() {
+        return abi;
+    }
+
+    /**
+     * Determines whether this class references the given class or any of its nested classes
+     * @param className The internal name of the class to look for
+     * @return Whether the class is referenced
+     */
+    public boolean references(String className) {
+        String nested = className + "$";
+        for(String ref : referencedClasses) {
+            if(ref.equals(className) || ref.startsWith(nested)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Reads a class file from the given stream. The stream is not closed.
+     * @param stream The stream to read
+     * @return Information about the class
+     * @throws IOException If the stream could not be read or does not contain a class file
+     */
+    public static ClassFileInfo read(InputStream stream) throws IOException {
+
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a class file!");
+        }
+
+        in.readUnsignedShort(); // Minor version
+        int major = in.readUnsignedShort();
+
+        int poolSize = in.readUnsignedShort();
+        String[] utf8 = new String[poolSize];
+        int[] classes = new int[poolSize];
+        int[] descriptors = new int[poolSize];
+        int[] strings = new int[poolSize];
+        String[] constants = new String[poolSize];
+
+        for(int i = 1 ; i < poolSize ; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classes[i] = in.readUnsignedShort();
+                    break;
+                case 16: // MethodType
+                    descriptors[i] = in.readUnsignedShort();
+                    break;
+                case 12: // NameAndType
+                    in.readUnsignedShort();
+                    descriptors[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                    strings[i] = in.readUnsignedShort();
+                    break;
+                case 19: // Module
+                case 20: // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                    constants[i] = Integer.toString(in.readInt());
+                    break;
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    constants[i] = Long.toString(in.readLong());
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + "!");
+            }
+        }
+
+        Set<String> references = new HashSet<>();
+        for(int i = 1 ; i < poolSize ; i++) {
+            if(classes[i] != 0) addClassName(utf8[classes[i]], references);
+            if(descriptors[i] != 0) addDescriptor(utf8[descriptors[i]], references);
+            if(strings[i] != 0) constants[i] = utf8[strings[i]];
+        }
+
+        StringBuilder abi = new StringBuilder();
+        abi.append(in.readUnsignedShort()).append(' '); // Access flags
+        String name = utf8[classes[in.readUnsignedShort()]];
+        int superClass = in.readUnsignedShort();
+        abi.append(name).append(" extends ").append(superClass == 0 ? "" : utf8[classes[superClass]]).append(" implements");
+
+        int interfaces = in.readUnsignedShort();
+        for(int i = 0 ; i < interfaces ; i++) {
+            abi.append(' ').append(utf8[classes[in.readUnsignedShort()]]);
+        }
+        abi.append('\n');
+
+        // Fields and methods share a layout
+        for(int pass = 0 ; pass < 2 ; pass++) {
+            int members = in.readUnsignedShort();
+            for(int i = 0 ; i < members ; i++) {
+                int access = in.readUnsignedShort();
+                String memberName = utf8[in.readUnsignedShort()];
+                String descriptor = utf8[in.readUnsignedShort()];
+                addDescriptor(descriptor, references);
+
+                boolean visible = (access & ACC_PRIVATE) == 0;
+                if(visible) abi.append(access).append(' ').append(memberName).append(' ').append(descriptor);
+                readAttributes(in, utf8, classes, constants, visible ? abi : null);
+                if(visible) abi.append('\n');
+            }
+        }
+
+        String sourceFile = null;
+        int attributes = in.readUnsignedShort();
+        for(int i = 0 ; i < attributes ; i++) {
+            String attributeName = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            if("SourceFile".equals(attributeName)) {
+                sourceFile = utf8[in.readUnsignedShort()];
+            } else {
+                readAttribute(in, attributeName, length, utf8, classes, constants, abi);
+            }
+        }
+
+        references.remove(name);
+        return new ClassFileInfo(major, name, sourceFile, references, abi.toString());
+    }
+
+
+    private static void readAttributes(DataInputStream in, String[] utf8, int[] classes, String[] constants, StringBuilder abi) throws IOException {
+        int attributes = in.readUnsignedShort();
+        for(int i = 0 ; i < attributes ; i++) {
+            String attributeName = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            if(abi == null) {
+                skip(in, length);
+            } else {
+                readAttribute(in, attributeName, length, utf8, classes, constants, abi);
+            }
+        }
+    }
+
+    private static void readAttribute(DataInputStream in, String attributeName, int length, String[] utf8, int[] classes, String[] constants, StringBuilder abi) throws IOException {
+
+        switch (attributeName) {
+            case "Signature":
+                abi.append(" signature ").append(utf8[in.readUnsignedShort()]);
+                break;
+            case "ConstantValue":
+                abi.append(" = ").append(constants[in.readUnsignedShort()]);
+                break;
+            case "Exceptions":
+                abi.append(" throws");
+                int exceptions = in.readUnsignedShort();
+                for(int i = 0 ; i < exceptions ; i++) {
+                    abi.append(' ').append(utf8[classes[in.readUnsignedShort()]]);
+                }
+                break;
+            default:
+                if(!RAW_ABI_ATTRIBUTES.contains(attributeName)) {
+                    skip(in, length);
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                abi.append(' ').append(attributeName).append(' ').append(Base64.getEncoder().encodeToString(bytes));
+        }
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        if(in.skipBytes(length) != length) {
+            throw new IOException("Unexpected end of class file!");
+        }
+    }
+
+    private static void addClassName(String name, Set<String> out) {
+        if(name == null) return;
+        if(name.startsWith("[")) {
+            addDescriptor(name, out);
+        } else {
+            out.add(name);
+        }
+    }
+
+    private static void addDescriptor(String descriptor, Set<String> out) {
+        if(descriptor == null) return;
+
+        int index = descriptor.indexOf('L');
+        while(index != -1) {
+            int end = descriptor.indexOf(';', index);
+            if(end == -1) return;
+
+            out.add(descriptor.substring(index + 1, end));
+            index = descriptor.indexOf('L', end);
+        }
+    }
+
+}
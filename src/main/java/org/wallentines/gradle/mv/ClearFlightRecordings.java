@@ -0,0 +1,44 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.Directory;
+import org.gradle.api.provider.Provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Deletes the recordings of a task's previous run before it runs again, and tells the {@link FlightRecordingService}
+ * that the task's recordings will be written in this build
+ */
+class ClearFlightRecordings implements Action<Task> {
+
+    private final Provider<FlightRecordingService> service;
+    private final Provider<Directory> directory;
+
+    ClearFlightRecordings(Provider<FlightRecordingService> service, Provider<Directory> directory) {
+        this.service = service;
+        this.directory = directory;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        File dir = directory.get().getAsFile();
+        File[] recordings = dir.listFiles();
+        if(recordings != null) {
+            for(File recording : recordings) {
+                try {
+                    Files.deleteIfExists(recording.toPath());
+                } catch (IOException ex) {
+                    throw new GradleException("Unable to delete flight recording " + recording + "!", ex);
+                }
+            }
+        }
+        service.get().recorded(dir);
+    }
+
+}
@@ -0,0 +1,292 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merges the JMH JSON results of every versioned benchmark run into one table, comparing each benchmark's score
+ * across versions. When a baseline report is set, each score is also compared with the baseline, and the task fails if
+ * any score regressed by more than the threshold.
+ */
+@CacheableTask
+public abstract class CompareBenchmarks extends DefaultTask {
+
+    private final List<VersionedResults> versionedResults = new ArrayList<>();
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Nested
+    public List<VersionedResults> getVersionedResults() {
+        return versionedResults;
+    }
+
+    /**
+     * A report previously written by this task, which scores are compared against
+     * @return The baseline report
+     */
+    @Optional
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getBaseline();
+
+    /**
+     * The largest allowed regression against the baseline, as a fraction of the baseline score (e.g. 0.1 for 10%)
+     * @return The regression threshold
+     */
+    @Optional
+    @Input
+    public abstract Property<Double> getThreshold();
+
+    @OutputFile
+    public abstract RegularFileProperty getReport();
+
+    @OutputFile
+    public abstract RegularFileProperty getTable();
+
+    /**
+     * Adds the JMH JSON results of a benchmark run on the given version
+     * @param version The version the benchmarks ran on
+     * @param results The result files
+     */
+    public void results(int version, Object... results) {
+        VersionedResults out = getObjectFactory().newInstance(VersionedResults.class);
+        out.getVersion().set(version);
+        out.getResults().from(results);
+        versionedResults.add(out);
+    }
+
+    @TaskAction
+    public void compare() throws IOException {
+
+        Map<String, Benchmark> benchmarks = new TreeMap<>();
+        TreeSet<Integer> versions = new TreeSet<>();
+
+        for(VersionedResults results : versionedResults) {
+
+            int version = results.getVersion().get();
+            for(File file : results.getResults()) {
+                if(!file.isFile()) continue;
+
+                versions.add(version);
+                for(Object entry : asList(read(file))) {
+
+                    Map<String, Object> result = asMap(entry);
+                    Map<String, Object> metric = asMap(result.get("primaryMetric"));
+
+                    Benchmark benchmark = benchmarks.computeIfAbsent(getName(result), key -> new Benchmark());
+                    benchmark.mode = String.valueOf(result.get("mode"));
+                    benchmark.unit = String.valueOf(metric.get("scoreUnit"));
+                    benchmark.scores.put(version, asDouble(metric.get("score")));
+                }
+            }
+        }
+
+        Map<String, Benchmark> baseline = getBaseline().isPresent() ? readReport(getBaseline().get().getAsFile()) : new TreeMap<>();
+        List<String> regressions = new ArrayList<>();
+
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ROOT, "%-60s %-8s", "Benchmark", "Mode"));
+        for(int version : versions) {
+            table.append(String.format(Locale.ROOT, " %28s", "Java " + version));
+        }
+        table.append('\n');
+
+        for(Map.Entry<String, Benchmark> entry : benchmarks.entrySet()) {
+
+            Benchmark benchmark = entry.getValue();
+            Benchmark base = baseline.get(entry.getKey());
+            table.append(String.format(Locale.ROOT, "%-60s %-8s", entry.getKey(), benchmark.mode));
+
+            for(int version : versions) {
+
+                Double score = benchmark.scores.get(version);
+                Double baseScore = base == null ? null : base.scores.get(version);
+
+                String cell = "";
+                if(score != null) {
+                    cell = String.format(Locale.ROOT, "%.3f %s", score, benchmark.unit);
+                    if(baseScore != null && baseScore != 0.0) {
+                        double change = (score - baseScore) / baseScore;
+                        cell += String.format(Locale.ROOT, " (%+.1f%%)", change * 100);
+
+                        // Throughput is better when higher, all other modes measure time
+                        double regression = benchmark.isThroughput() ? -change : change;
+                        if(getThreshold().isPresent() && regression > getThreshold().get()) {
+                            regressions.add(String.format(Locale.ROOT, "%s on Java %d: %.3f -> %.3f %s", entry.getKey(), version, baseScore, score, benchmark.unit));
+                        }
+                    }
+                }
+                table.append(String.format(Locale.ROOT, " %28s", cell));
+            }
+            table.append('\n');
+        }
+
+        write(getTable().get().getAsFile(), table.toString());
+        write(getReport().get().getAsFile(), toJson(versions, benchmarks));
+        getLogger().lifecycle(table.toString());
+
+        if(!regressions.isEmpty()) {
+            throw new GradleException(String.format(Locale.ROOT, "%d benchmark(s) regressed by more than %.1f%% against the baseline:\n  %s",
+                    regressions.size(), getThreshold().get() * 100, String.join("\n  ", regressions)));
+        }
+    }
+
+
+    private static String getName(Map<String, Object> result) {
+
+        String name = String.valueOf(result.get("benchmark"));
+        Object params = result.get("params");
+        if(!(params instanceof Map) || ((Map<?, ?>) params).isEmpty()) return name;
+
+        StringBuilder out = new StringBuilder(name).append(" (");
+        boolean first = true;
+        for(Map.Entry<?, ?> param : new TreeMap<>((Map<?, ?>) params).entrySet()) {
+            if(!first) out.append(", ");
+            out.append(param.getKey()).append('=').append(param.getValue());
+            first = false;
+        }
+        return out.append(')').toString();
+    }
+
+    private static Map<String, Benchmark> readReport(File file) throws IOException {
+
+        Map<String, Benchmark> out = new TreeMap<>();
+        for(Map.Entry<String, Object> entry : asMap(asMap(read(file)).get("benchmarks")).entrySet()) {
+
+            Map<String, Object> value = asMap(entry.getValue());
+            Benchmark benchmark = new Benchmark();
+            benchmark.mode = String.valueOf(value.get("mode"));
+            benchmark.unit = String.valueOf(value.get("unit"));
+            for(Map.Entry<String, Object> score : asMap(value.get("scores")).entrySet()) {
+                benchmark.scores.put(Integer.parseInt(score.getKey()), asDouble(score.getValue()));
+            }
+            out.put(entry.getKey(), benchmark);
+        }
+        return out;
+    }
+
+    private static String toJson(TreeSet<Integer> versions, Map<String, Benchmark> benchmarks) {
+
+        StringBuilder json = new StringBuilder("{\n  \"versions\": [");
+        boolean first = true;
+        for(int version : versions) {
+            if(!first) json.append(", ");
+            json.append(version);
+            first = false;
+        }
+        json.append("],\n  \"benchmarks\": {");
+
+        first = true;
+        for(Map.Entry<String, Benchmark> entry : benchmarks.entrySet()) {
+            Benchmark benchmark = entry.getValue();
+            json.append(first ? "\n" : ",\n").append("    ").append(quote(entry.getKey())).append(": {\n");
+            json.append("      \"mode\": ").append(quote(benchmark.mode)).append(",\n");
+            json.append("      \"unit\": ").append(quote(benchmark.unit)).append(",\n");
+            json.append("      \"scores\": {");
+
+            boolean firstScore = true;
+            for(Map.Entry<Integer, Double> score : benchmark.scores.entrySet()) {
+                if(!firstScore) json.append(", ");
+                json.append(quote(score.getKey().toString())).append(": ");
+                json.append(score.getValue().isNaN() ? "\"NaN\"" : score.getValue().toString());
+                firstScore = false;
+            }
+            json.append("}\n    }");
+            first = false;
+        }
+
+        return json.append("\n  }\n}\n").toString();
+    }
+
+
+    private static Object read(File file) throws IOException {
+        return JsonReader.read(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        if(!(value instanceof Map)) throw new GradleException("Unexpected benchmark result format!");
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        if(!(value instanceof List)) throw new GradleException("Unexpected benchmark result format!");
+        return (List<Object>) value;
+    }
+
+    private static double asDouble(Object value) {
+        if(value instanceof Number) return ((Number) value).doubleValue();
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    private static class Benchmark {
+
+        String mode;
+        String unit;
+        final TreeMap<Integer, Double> scores = new TreeMap<>();
+
+        boolean isThroughput() {
+            return "thrpt".equals(mode);
+        }
+    }
+
+
+    /**
+     * The benchmark results of a specific version
+     */
+    public static abstract class VersionedResults {
+
+        @Input
+        public abstract Property<Integer> getVersion();
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.NONE)
+        public abstract ConfigurableFileCollection getResults();
+
+    }
+
+}
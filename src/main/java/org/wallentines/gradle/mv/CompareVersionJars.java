@@ -0,0 +1,256 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
+
+import javax.inject.Inject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compares the entries of each versioned jar with the default jar, and writes a JSON report listing which entries
+ * are identical, which differ, which were added because the default jar does not contain them, and which are missing
+ * from the versioned jar. Optionally writes a delta jar for each version, containing only the entries which differ
+ * from or do not exist in the default jar.
+ */
+@CacheableTask
+public abstract class CompareVersionJars extends DefaultTask {
+
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private final List<VersionedJar> versionedJars = new ArrayList<>();
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract RegularFileProperty getDefaultJar();
+
+    @Nested
+    public List<VersionedJar> getVersionedJars() {
+        return versionedJars;
+    }
+
+    @OutputFile
+    public abstract RegularFileProperty getReport();
+
+    @Optional
+    @OutputDirectory
+    public abstract DirectoryProperty getDeltaDirectory();
+
+    /**
+     * Adds a versioned jar to compare with the default jar
+     * @param version The version the jar was built for
+     * @param jar The jar file
+     */
+    public void versionedJar(int version, Provider<RegularFile> jar) {
+        VersionedJar out = getObjectFactory().newInstance(VersionedJar.class);
+        out.getVersion().set(version);
+        out.getJar().set(jar);
+        versionedJars.add(out);
+    }
+
+    @TaskAction
+    public void compare() throws IOException {
+
+        Map<String, String> defaultHashes = hashEntries(getDefaultJar().get().getAsFile());
+        File deltaDirectory = getDeltaDirectory().isPresent() ? getDeltaDirectory().get().getAsFile() : null;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"defaultJar\": ").append(quote(getDefaultJar().get().getAsFile().getName())).append(",\n  \"versions\": {");
+
+        List<VersionedJar> sorted = new ArrayList<>(versionedJars);
+        sorted.sort(Comparator.comparing(jar -> jar.getVersion().get()));
+
+        for(int i = 0 ; i < sorted.size() ; i++) {
+
+            VersionedJar versioned = sorted.get(i);
+            File jarFile = versioned.getJar().get().getAsFile();
+            Map<String, String> hashes = hashEntries(jarFile);
+
+            List<String> identical = new ArrayList<>();
+            List<String> differing = new ArrayList<>();
+            List<String> added = new ArrayList<>();
+            List<String> missing = new ArrayList<>();
+
+            for(Map.Entry<String, String> entry : hashes.entrySet()) {
+                String base = defaultHashes.get(entry.getKey());
+                if(base == null) {
+                    added.add(entry.getKey());
+                } else if(base.equals(entry.getValue())) {
+                    identical.add(entry.getKey());
+                } else {
+                    differing.add(entry.getKey());
+                }
+            }
+            for(String name : defaultHashes.keySet()) {
+                if(!hashes.containsKey(name)) missing.add(name);
+            }
+
+            File delta = null;
+            if(deltaDirectory != null) {
+                List<String> entries = new ArrayList<>(differing);
+                entries.addAll(added);
+                delta = writeDelta(jarFile, new File(deltaDirectory, getDeltaName(jarFile)), entries);
+            }
+
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(versioned.getVersion().get().toString())).append(": {\n");
+            json.append("      \"jar\": ").append(quote(jarFile.getName())).append(",\n");
+            if(delta != null) {
+                json.append("      \"deltaJar\": ").append(quote(delta.getName())).append(",\n");
+            }
+            appendList(json, "identical", identical, false);
+            appendList(json, "differing", differing, false);
+            appendList(json, "added", added, false);
+            appendList(json, "missing", missing, true);
+            json.append("    }");
+        }
+
+        json.append("\n  }\n}\n");
+
+        File report = getReport().get().getAsFile();
+        Files.createDirectories(report.getParentFile().toPath());
+        Files.write(report.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static Map<String, String> hashEntries(File jar) throws IOException {
+
+        Map<String, String> out = new ConcurrentHashMap<>();
+        try(ZipFile zip = new ZipFile(jar)) {
+
+            // Entries are read directly from the zip in parallel, without extracting them
+            zip.stream().parallel()
+                    .filter(entry -> !entry.isDirectory() && !entry.getName().equals(MANIFEST))
+                    .forEach(entry -> out.put(entry.getName(), hash(zip, entry)));
+
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return new TreeMap<>(out);
+    }
+
+    private static String hash(ZipFile zip, ZipEntry entry) {
+
+        try(InputStream in = zip.getInputStream(entry)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+
+            StringBuilder out = new StringBuilder();
+            for(byte b : digest.digest()) {
+                out.append(String.format("%02x", b));
+            }
+            return out.toString();
+
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new GradleException("SHA-256 is not available!", ex);
+        }
+    }
+
+    private static File writeDelta(File jar, File out, List<String> entries) throws IOException {
+
+        Files.createDirectories(out.getParentFile().toPath());
+        Collections.sort(entries);
+
+        try(ZipFile zip = new ZipFile(jar);
+            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(out.toPath())))) {
+
+            ZipEntry manifest = zip.getEntry(MANIFEST);
+            if(manifest != null) copyEntry(zip, manifest, zos);
+
+            for(String name : entries) {
+                copyEntry(zip, zip.getEntry(name), zos);
+            }
+        }
+        return out;
+    }
+
+    private static void copyEntry(ZipFile zip, ZipEntry entry, ZipOutputStream out) throws IOException {
+
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        out.putNextEntry(copy);
+        try(InputStream in = zip.getInputStream(entry)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        out.closeEntry();
+    }
+
+    private static String getDeltaName(File jar) {
+        String name = jar.getName();
+        return (name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name) + "-delta.jar";
+    }
+
+    private static void appendList(StringBuilder json, String key, List<String> values, boolean last) {
+
+        json.append("      ").append(quote(key)).append(": [");
+        for(int i = 0 ; i < values.size() ; i++) {
+            if(i > 0) json.append(", ");
+            json.append(quote(values.get(i)));
+        }
+        json.append(last ? "]\n" : "],\n");
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    /**
+     * A jar built for a specific version
+     */
+    public static abstract class VersionedJar {
+
+        @Input
+        public abstract Property<Integer> getVersion();
+
+        @InputFile
+        @PathSensitive(PathSensitivity.NAME_ONLY)
+        public abstract RegularFileProperty getJar();
+
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * A build service used only to limit how many versioned compile tasks may run at once when compiling in parallel
+ */
+public abstract class CompilationLimit implements BuildService<BuildServiceParameters.None> {
+
+}
@@ -0,0 +1,225 @@
+package org.wallentines.gradle.mv;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The state of a versioned compile task after its last successful compilation in a worker daemon. Records a hash of
+ * the compiler options and classpath, a hash of each source file by its relative path, and a fingerprint of the
+ * output directory. The next compilation uses it to find which compilation units changed, including a main source
+ * being replaced by an override with the same relative path.
+ */
+class CompileState {
+
+    private static final String OPTIONS = "options ";
+    private static final String OUTPUTS = "outputs ";
+
+    private final String options;
+    private final String outputs;
+    private final Map<String, String> sources;
+
+    CompileState(String options, String outputs, Map<String, String> sources) {
+        this.options = options;
+        this.outputs = outputs;
+        this.sources = sources;
+    }
+
+    String getOptions() {
+        return options;
+    }
+
+    String getOutputs() {
+        return outputs;
+    }
+
+    Map<String, String> getSources() {
+        return sources;
+    }
+
+    /**
+     * Creates a copy of this state with the given output fingerprint
+     * @param outputs The output fingerprint
+     * @return A new state
+     */
+    CompileState withOutputs(String outputs) {
+        return new CompileState(options, outputs, sources);
+    }
+
+    /**
+     * Encodes this state so it can be passed to a worker or written to disk
+     * @return The encoded state
+     */
+    String encode() {
+        StringBuilder out = new StringBuilder();
+        out.append(OPTIONS).append(options).append('\n');
+        if(outputs != null) out.append(OUTPUTS).append(outputs).append('\n');
+        for(Map.Entry<String, String> source : sources.entrySet()) {
+            out.append(source.getValue()).append(' ').append(source.getKey()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decodes a state previously encoded by {@link #encode()}
+     * @param encoded The encoded state
+     * @return The decoded state, or null if the encoded state is malformed
+     */
+    static CompileState decode(String encoded) {
+
+        String options = null;
+        String outputs = null;
+        Map<String, String> sources = new TreeMap<>();
+
+        for(String line : encoded.split("\n")) {
+            if(line.isEmpty()) continue;
+            if(line.startsWith(OPTIONS)) {
+                options = line.substring(OPTIONS.length());
+            } else if(line.startsWith(OUTPUTS)) {
+                outputs = line.substring(OUTPUTS.length());
+            } else {
+                int separator = line.indexOf(' ');
+                if(separator == -1) return null;
+                sources.put(line.substring(separator + 1), line.substring(0, separator));
+            }
+        }
+        return options == null ? null : new CompileState(options, outputs, sources);
+    }
+
+    /**
+     * Reads the state from the given file
+     * @param file The state file
+     * @return The state, or null if the file does not exist or is malformed
+     */
+    static CompileState read(File file) {
+        if(!file.isFile()) return null;
+        try {
+            return decode(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the state to the given file
+     * @param file The state file
+     * @throws IOException If the file could not be written
+     */
+    void write(File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Hashes the contents of a file
+     * @param file The file to hash
+     * @return A hex-encoded hash
+     * @throws IOException If the file could not be read
+     */
+    static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try(InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes a list of strings, along with the path, size and modification time of every file in the given files and
+     * directories. Used to detect changes to the compiler options and classpath without reading every file.
+     * @param values The strings to hash
+     * @param files The files and directories to fingerprint
+     * @return A hex-encoded hash
+     * @throws IOException If a directory could not be walked
+     */
+    static String fingerprint(List<String> values, Iterable<File> files) throws IOException {
+        return fingerprint(values, files, false);
+    }
+
+    /**
+     * Hashes a list of strings along with a classpath. Class files in classpath directories are hashed by their ABI
+     * rather than by their size and modification time, so changing only method bodies or private members of classes
+     * on the classpath does not change the hash. Jars and other files are hashed like {@link #fingerprint}.
+     * @param values The strings to hash
+     * @param classpath The classpath to fingerprint
+     * @return A hex-encoded hash
+     * @throws IOException If a directory could not be walked or a class file could not be read
+     */
+    static String fingerprintClasspath(List<String> values, Iterable<File> classpath) throws IOException {
+        return fingerprint(values, classpath, true);
+    }
+
+
+    private static String fingerprint(List<String> values, Iterable<File> files, boolean abi) throws IOException {
+
+        MessageDigest digest = newDigest();
+        for(String value : values) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        for(File root : files) {
+            List<Path> paths = new ArrayList<>();
+            if(root.isDirectory()) {
+                try(Stream<Path> walk = Files.walk(root.toPath())) {
+                    Iterator<Path> it = walk.filter(Files::isRegularFile).sorted().iterator();
+                    while(it.hasNext()) paths.add(it.next());
+                }
+            } else if(root.isFile()) {
+                paths.add(root.toPath());
+            }
+
+            for(Path path : paths) {
+                File file = path.toFile();
+                if(abi && root.isDirectory() && file.getName().endsWith(".class")) {
+                    digest.update((file.getPath() + ":" + readAbi(path)).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    digest.update((file.getPath() + ":" + file.length() + ":" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+
+    private static String readAbi(Path path) throws IOException {
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return ClassFileInfo.read(in).getAbi();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available!", ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for(byte b : bytes) {
+            out.append(String.format("%02x", b));
+        }
+        return out.toString();
+    }
+
+}
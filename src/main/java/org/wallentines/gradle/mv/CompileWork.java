@@ -0,0 +1,80 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs javac inside a worker daemon. The worker runs on the toolchain of the version being compiled, so the system
+ * compiler of the worker's JVM is used directly. After a successful compilation, the compile state is written so the
+ * next compilation can be incremental.
+ */
+public abstract class CompileWork implements WorkAction<CompileWork.Parameters> {
+
+    public interface Parameters extends WorkParameters {
+
+        DirectoryProperty getDestinationDirectory();
+
+        ListProperty<String> getArguments();
+
+        Property<Boolean> getFullRecompilation();
+
+        RegularFileProperty getStateFile();
+
+        Property<String> getState();
+
+    }
+
+    @Override
+    public void execute() {
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if(compiler == null) {
+            throw new GradleException("Unable to find a Java compiler in " + System.getProperty("java.home") + "!");
+        }
+
+        // Stale classes are removed first on full recompilation. Otherwise, the classes of changed sources were
+        // already removed before the work was submitted
+        File destination = getParameters().getDestinationDirectory().get().getAsFile();
+        try {
+            if(getParameters().getFullRecompilation().get() && destination.exists()) {
+                try(Stream<Path> files = Files.walk(destination.toPath())) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+            Files.createDirectories(destination.toPath());
+        } catch (IOException ex) {
+            throw new GradleException("Unable to clean output directory " + destination + "!", ex);
+        }
+
+        String[] args = getParameters().getArguments().get().toArray(new String[0]);
+        if(compiler.run(null, System.out, System.err, args) != 0) {
+            throw new GradleException("Compilation failed; see the compiler error output for details.");
+        }
+
+        File stateFile = getParameters().getStateFile().get().getAsFile();
+        CompileState state = CompileState.decode(getParameters().getState().get());
+        if(state == null) return;
+
+        try {
+            state.withOutputs(CompileState.fingerprint(Collections.emptyList(), Collections.singleton(destination))).write(stateFile);
+        } catch (IOException ex) {
+            throw new GradleException("Unable to write compile state to " + stateFile + "!", ex);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compresses a source set's resources into a zip archive once, so every versioned jar can copy the compressed entries
+ * into itself as they are, rather than compressing the same resources again for each version. Entries are written in
+ * a stable order with constant timestamps, so the archive only changes when the resources do.
+ */
+@CacheableTask
+public abstract class CompressResources extends DefaultTask {
+
+    // The same constant Gradle uses for archive entries when file timestamps are not preserved
+    private static final long CONSTANT_TIME = new GregorianCalendar(1980, 1, 1, 0, 0, 0).getTimeInMillis();
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getResources();
+
+    @OutputFile
+    public abstract RegularFileProperty getArchive();
+
+    @TaskAction
+    public void compress() throws IOException {
+
+        Map<String, File> entries = new TreeMap<>();
+        getResources().getAsFileTree().visit(details -> {
+            String path = details.getRelativePath().getPathString();
+            entries.put(details.isDirectory() ? path + "/" : path, details.getFile());
+        });
+
+        File archive = getArchive().get().getAsFile();
+        Files.createDirectories(archive.getParentFile().toPath());
+
+        try(ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(archive.toPath())))) {
+            for(Map.Entry<String, File> entry : entries.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(CONSTANT_TIME);
+                out.putNextEntry(zipEntry);
+                if(!entry.getKey().endsWith("/")) {
+                    Files.copy(entry.getValue().toPath(), out);
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileCopyDetails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selects the files of the default version which must be copied to its own versioned directory in a multi-release
+ * jar. A JVM looks for each file in every versioned directory up to its own version before the root, so when a version
+ * lower than the default overrides a file, newer JVMs would load that version's copy instead of the default's. Only
+ * files which end up in a lower version's directory are kept.
+ */
+class DefaultVersionFilter implements Action<FileCopyDetails> {
+
+    private final Map<Integer, FileCollection> lowerVersions = new TreeMap<>();
+
+    /**
+     * Adds the contents of a multi-release version which is lower than the default
+     * @param version The version
+     * @param contents The version's classes and resources
+     */
+    void addLowerVersion(int version, FileCollection contents) {
+        lowerVersions.put(version, contents);
+    }
+
+    @Override
+    public void execute(FileCopyDetails details) {
+
+        String path = details.getRelativeSourcePath().getPathString();
+        try {
+            byte[] rootBytes = Files.readAllBytes(details.getFile().toPath());
+            for(Map.Entry<Integer, FileCollection> entry : lowerVersions.entrySet()) {
+                for(File dir : entry.getValue().getFiles()) {
+
+                    File versioned = new File(dir, path);
+                    if(!versioned.isFile()) continue;
+
+                    if(!MultiReleaseFilter.isEquivalent(rootBytes, Files.readAllBytes(versioned.toPath()), path.endsWith(".class"), entry.getKey())) {
+                        return;
+                    }
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            throw new GradleException("Unable to compare " + path + " with the versioned directories of the jar!", ex);
+        }
+        details.exclude();
+    }
+
+}
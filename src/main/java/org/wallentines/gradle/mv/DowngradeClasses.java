@@ -0,0 +1,81 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Produces a version's main classes by transforming classes compiled once for a newer version, rather than compiling
+ * the same sources again. The transformation runs in a worker daemon on the version's own toolchain, and fails the
+ * task if any class uses a construct or an API which the version does not support. Classes compiled from sources which
+ * the version overrides are left out, so the version's own classes replace them.
+ */
+@CacheableTask
+public abstract class DowngradeClasses extends DefaultTask {
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getClasses();
+
+    /**
+     * The version's compile classpath. Classes found on it belong to libraries, and are not checked against the JDK.
+     * @return The classpath
+     */
+    @CompileClasspath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    /**
+     * The version's override sources
+     * @return The override sources
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getOverrides();
+
+    /**
+     * The package containing stub classes for JDK methods which are missing on the target version. A stub for a method
+     * of {@code java.util.List} would be in the class {@code <stubPackage>.java.util.List}
+     * @return The stub package
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getStubPackage();
+
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    @TaskAction
+    public void downgrade() {
+
+        Set<String> overridden = new HashSet<>();
+        getOverrides().getAsFileTree().visit(details -> {
+            if(!details.isDirectory()) overridden.add(details.getRelativePath().getPathString());
+        });
+
+        JavaLauncher launcher = getJavaLauncher().get();
+        getWorkerExecutor().processIsolation(spec -> spec.forkOptions(fork -> fork.setExecutable(launcher.getExecutablePath().getAsFile())))
+                .submit(DowngradeWork.class, params -> {
+                    params.getClasses().from(getClasses());
+                    params.getClasspath().from(getClasspath());
+                    params.getOverriddenSources().set(overridden);
+                    params.getTargetVersion().set(launcher.getMetadata().getLanguageVersion().asInt());
+                    params.getStubPackage().set(getStubPackage());
+                    params.getDestinationDirectory().set(getDestinationDirectory());
+                });
+    }
+
+}
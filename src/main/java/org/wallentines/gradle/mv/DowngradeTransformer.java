@@ -0,0 +1,505 @@
+package org.wallentines.gradle.mv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transforms class files compiled for a newer version of Java so they run on an older one. The class file version is
+ * lowered, and references to JDK classes and members are checked against the target JDK. A call to a JDK method which
+ * does not exist on the target is redirected to a static method with the same name in a stub class, when one exists.
+ * The stub for an instance method takes the receiver as its first parameter. Any other construct which the target
+ * cannot run is reported as an error rather than transformed.
+ * <p>
+ * Before Java 11, classes cannot access the private members of their nestmates directly. Private members of classes
+ * which are accessed that way are made package-private, since nestmates are always in the same package.
+ * <p>
+ * Only the constant pool, access flags and the operands of invoke instructions are changed, so instruction offsets and
+ * stack map frames stay valid.
+ */
+class DowngradeTransformer {
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private static final int CLASS = 7;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int DYNAMIC = 17;
+
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    // A reference to a stub method is made of the owner's name, its class, the method's name and descriptor, a name
+    // and type entry and the method reference itself
+    private static final int ENTRIES_PER_STUB = 6;
+
+    private final int targetVersion;
+    private final String stubPackage;
+    private final Map<String, ClassModel> classes;
+    private final JdkApi api;
+    private final Set<String> nestAccess;
+
+    /**
+     * Creates a transformer
+     * @param targetVersion The Java version to transform classes for
+     * @param stubPackage The internal name of the package containing stub classes, or null
+     * @param classes Every class being transformed, by internal name
+     * @param api The API of the target JDK
+     */
+    DowngradeTransformer(int targetVersion, String stubPackage, Map<String, ClassModel> classes, JdkApi api) {
+        this.targetVersion = targetVersion;
+        this.stubPackage = stubPackage;
+        this.classes = classes;
+        this.api = api;
+        this.nestAccess = targetVersion < 11 ? findNestAccess(classes.values()) : Collections.emptySet();
+    }
+
+    /**
+     * Transforms a class file
+     * @param model The parsed class
+     * @param errors A list to add a message to for every construct which cannot be transformed
+     * @return The transformed class file, or null if the class should not exist on the target version
+     */
+    byte[] transform(ClassModel model, List<String> errors) throws IOException {
+
+        if(model.isModuleInfo()) {
+            return targetVersion < 9 ? null : withVersion(model.bytes, model);
+        }
+
+        String name = model.name;
+        String display = name.replace('/', '.');
+        if(model.minorVersion == 0xFFFF) {
+            errors.add(display + " uses preview features");
+        }
+        if(model.hasAttribute("Record")) checkVersion(display, "a record", 16, errors);
+        if(model.hasAttribute("PermittedSubclasses")) checkVersion(display, "a sealed class", 17, errors);
+
+        ConstantPool pool = model.pool;
+        boolean[] missing = new boolean[pool.size()];
+
+        for(int i = 1 ; i < pool.size() ; i++) {
+            int tag = pool.tags[i];
+            if(tag == DYNAMIC) {
+                checkVersion(display, "a dynamic constant", 11, errors);
+            } else if(tag == CLASS) {
+                String owner = stripArray(pool.className(i));
+                if(owner != null && api.isMissingClass(owner)) {
+                    errors.add(display + " references " + owner.replace('/', '.') + ", which does not exist on Java " + targetVersion);
+                }
+            } else if(tag == FIELD_REF || tag == METHOD_REF || tag == INTERFACE_METHOD_REF) {
+                String owner = stripArray(pool.refOwner(i));
+                if(owner == null) continue;
+
+                String member = pool.refName(i);
+                String descriptor = pool.refDescriptor(i);
+
+                ClassModel local = classes.get(owner);
+                if(local != null) {
+                    if(local.isInterface() && !owner.equals(name) && nestAccess.contains(owner + "." + member + descriptor)) {
+                        errors.add(display + " accesses private member " + owner.replace('/', '.') + "." + member + " of a nestmate interface, which requires Java 11");
+                    }
+                } else if(!api.isMissingClass(owner) && api.isMissingMember(owner, member, descriptor, tag == FIELD_REF)) {
+                    missing[i] = true;
+                }
+            }
+        }
+
+        // Redirect calls to missing methods to stubs, and report every other use of a missing member
+        Map<String, Integer> appended = new LinkedHashMap<>();
+        ByteArrayOutputStream appendedBytes = new ByteArrayOutputStream();
+        byte[] out = model.bytes.clone();
+        int poolSize = pool.size();
+
+        if(!model.isInterface()) {
+            for(Map.Entry<String, Integer> entry : model.memberOffsets.entrySet()) {
+                if(nestAccess.contains(name + "." + entry.getKey())) {
+                    out[entry.getValue() + 1] &= (byte) ~ACC_PRIVATE;
+                }
+            }
+        }
+
+        for(int code : model.codeOffsets) {
+            int length = ByteBuffer.wrap(out, code, 4).getInt();
+            int start = code + 4;
+            int pc = 0;
+            while(pc < length) {
+                int offset = start + pc;
+                int opcode = out[offset] & 0xFF;
+                if(opcode >= INVOKEVIRTUAL && opcode <= INVOKEINTERFACE) {
+
+                    int index = readShort(out, offset + 1);
+                    if(opcode == INVOKEINTERFACE && targetVersion < 11 && isPrivateLocal(pool, index)) {
+                        errors.add(display + " calls private interface method " + pool.refName(index) + " with invokeinterface, which requires Java 11");
+                    }
+                    if(missing[index]) {
+                        String owner = pool.refOwner(index);
+                        String descriptor = opcode == INVOKESTATIC ? pool.refDescriptor(index) : "(L" + owner + ";" + pool.refDescriptor(index).substring(1);
+                        String stub = stubPackage == null || opcode == INVOKESPECIAL ? null : stubPackage + "/" + owner;
+                        ClassModel stubClass = stub == null ? null : classes.get(stub);
+                        Integer access = stubClass == null ? null : stubClass.members.get(pool.refName(index) + descriptor);
+
+                        if(access == null || (access & ACC_STATIC) == 0) {
+                            errors.add(display + " calls " + owner.replace('/', '.') + "." + pool.refName(index) + pool.refDescriptor(index)
+                                    + ", which does not exist on Java " + targetVersion + (stub == null ? "" : " and has no stub in " + stub.replace('/', '.')));
+                        } else {
+                            int ref = appendMethodRef(appended, appendedBytes, poolSize, stub, pool.refName(index), descriptor, stubClass.isInterface());
+                            out[offset] = (byte) INVOKESTATIC;
+                            out[offset + 1] = (byte) (ref >> 8);
+                            out[offset + 2] = (byte) ref;
+                            if(opcode == INVOKEINTERFACE) {
+                                // The count and zero operands of invokeinterface become no-ops
+                                out[offset + 3] = 0;
+                                out[offset + 4] = 0;
+                            }
+                        }
+                    }
+
+                } else if(opcode >= 0xb2 && opcode <= 0xb5 && missing[readShort(out, offset + 1)]) {
+                    int index = readShort(out, offset + 1);
+                    errors.add(display + " uses field " + pool.refOwner(index).replace('/', '.') + "." + pool.refName(index) + ", which does not exist on Java " + targetVersion);
+                }
+                pc += instructionLength(out, start, pc);
+            }
+        }
+
+        int newSize = poolSize + appended.size() * ENTRIES_PER_STUB;
+        if(newSize > 0xFFFF) {
+            errors.add(display + " has too many constants to add stub references");
+            return null;
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(out.length + appendedBytes.size());
+        result.write(withVersion(out, model), 0, 8);
+        result.write(newSize >> 8);
+        result.write(newSize);
+        result.write(out, 10, pool.end - 10);
+        appendedBytes.writeTo(result);
+        result.write(out, pool.end, out.length - pool.end);
+        return result.toByteArray();
+    }
+
+
+    /**
+     * Finds the private members which are accessed by other classes in the same nest
+     * @return The owner, name and descriptor of each member
+     */
+    private static Set<String> findNestAccess(Collection<ClassModel> classes) {
+
+        Map<String, ClassModel> byName = new HashMap<>();
+        for(ClassModel model : classes) byName.put(model.name, model);
+
+        Set<String> out = ConcurrentHashMap.newKeySet();
+        classes.parallelStream().forEach(model -> {
+            ConstantPool pool = model.pool;
+            for(int i = 1 ; i < pool.size() ; i++) {
+                int tag = pool.tags[i];
+                if(tag != FIELD_REF && tag != METHOD_REF && tag != INTERFACE_METHOD_REF) continue;
+
+                String owner = pool.refOwner(i);
+                ClassModel local = owner.equals(model.name) ? null : byName.get(owner);
+                if(local == null) continue;
+
+                String member = pool.refName(i) + pool.refDescriptor(i);
+                Integer access = local.members.get(member);
+                if(access != null && (access & ACC_PRIVATE) != 0) {
+                    out.add(owner + "." + member);
+                }
+            }
+        });
+        return out;
+    }
+
+    private void checkVersion(String name, String feature, int required, List<String> errors) {
+        if(targetVersion < required) {
+            errors.add(name + " is " + feature + ", which requires Java " + required);
+        }
+    }
+
+    private boolean isPrivateLocal(ConstantPool pool, int index) {
+        ClassModel owner = classes.get(pool.refOwner(index));
+        if(owner == null) return false;
+        Integer access = owner.members.get(pool.refName(index) + pool.refDescriptor(index));
+        return access != null && (access & ACC_PRIVATE) != 0;
+    }
+
+    private byte[] withVersion(byte[] bytes, ClassModel model) {
+        byte[] out = bytes == model.bytes ? bytes.clone() : bytes;
+        int major = Math.min(model.majorVersion, 44 + targetVersion);
+        out[4] = 0;
+        out[5] = 0;
+        out[6] = (byte) (major >> 8);
+        out[7] = (byte) major;
+        return out;
+    }
+
+    private static int appendMethodRef(Map<String, Integer> appended, ByteArrayOutputStream bytes, int poolSize, String owner, String name, String descriptor, boolean isInterface) throws IOException {
+
+        String key = owner + "." + name + descriptor;
+        Integer existing = appended.get(key);
+        if(existing != null) return existing;
+
+        int first = poolSize + appended.size() * ENTRIES_PER_STUB;
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeUTF(owner);
+        out.writeByte(CLASS);
+        out.writeShort(first);
+        out.writeByte(1);
+        out.writeUTF(name);
+        out.writeByte(1);
+        out.writeUTF(descriptor);
+        out.writeByte(12);
+        out.writeShort(first + 2);
+        out.writeShort(first + 3);
+        out.writeByte(isInterface ? INTERFACE_METHOD_REF : METHOD_REF);
+        out.writeShort(first + 1);
+        out.writeShort(first + 4);
+
+        appended.put(key, first + 5);
+        return first + 5;
+    }
+
+    private static String stripArray(String name) {
+        if(name == null || !name.startsWith("[")) return name;
+        int index = name.lastIndexOf('[') + 1;
+        if(name.charAt(index) != 'L') return null;
+        return name.substring(index + 1, name.length() - 1);
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes, offset, 4).getInt();
+    }
+
+    private static int instructionLength(byte[] code, int start, int pc) {
+
+        int opcode = code[start + pc] & 0xFF;
+        switch (opcode) {
+            case 0x10: case 0x12: case 0xa9: case 0xbc:
+            case 0x15: case 0x16: case 0x17: case 0x18: case 0x19:
+            case 0x36: case 0x37: case 0x38: case 0x39: case 0x3a:
+                return 2;
+            case 0x11: case 0x13: case 0x14: case 0x84:
+            case 0xb2: case 0xb3: case 0xb4: case 0xb5: case 0xb6: case 0xb7: case 0xb8:
+            case 0xbb: case 0xbd: case 0xc0: case 0xc1: case 0xc6: case 0xc7:
+                return 3;
+            case 0xc5:
+                return 4;
+            case 0xb9: case 0xba: case 0xc8: case 0xc9:
+                return 5;
+            case 0xc4: // wide
+                return (code[start + pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+            case 0xaa: { // tableswitch
+                int base = pc + 1 + (4 - (pc + 1) % 4) % 4;
+                int low = readInt(code, start + base + 4);
+                int high = readInt(code, start + base + 8);
+                return base - pc + 12 + (high - low + 1) * 4;
+            }
+            case 0xab: { // lookupswitch
+                int base = pc + 1 + (4 - (pc + 1) % 4) % 4;
+                int pairs = readInt(code, start + base + 4);
+                return base - pc + 8 + pairs * 8;
+            }
+            default:
+                return opcode >= 0x99 && opcode <= 0xa8 ? 3 : 1;
+        }
+    }
+
+
+    /**
+     * Checks references against the API of the JDK this runs on
+     */
+    interface JdkApi {
+
+        /**
+         * Determines whether a class is a JDK class which is missing from the target. Classes outside the JDK are
+         * never missing.
+         */
+        boolean isMissingClass(String name);
+
+        /**
+         * Determines whether a member of an existing JDK class is missing from the target
+         */
+        boolean isMissingMember(String owner, String name, String descriptor, boolean field);
+
+    }
+
+
+    /**
+     * The parts of a class file the transformer needs: its constant pool, its members, the names of its attributes
+     * and the location of each method's code
+     */
+    static class ConstantPool {
+
+        final int[] tags;
+        final int[] offsets;
+        final byte[] bytes;
+        final int end;
+        private final String[] utf8;
+
+        ConstantPool(byte[] bytes, int count) throws IOException {
+
+            this.bytes = bytes;
+            this.tags = new int[count];
+            this.offsets = new int[count];
+            this.utf8 = new String[count];
+
+            int offset = 10;
+            for(int i = 1 ; i < count ; i++) {
+                int tag = bytes[offset] & 0xFF;
+                tags[i] = tag;
+                offsets[i] = offset + 1;
+                switch (tag) {
+                    case 1:
+                        int length = readShort(bytes, offset + 1);
+                        utf8[i] = decodeUtf8(bytes, offset + 3, length);
+                        offset += 3 + length;
+                        break;
+                    case 7: case 8: case 16: case 19: case 20:
+                        offset += 3;
+                        break;
+                    case 15:
+                        offset += 4;
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        offset += 5;
+                        break;
+                    case 5: case 6:
+                        offset += 9;
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag + "!");
+                }
+            }
+            this.end = offset;
+        }
+
+        int size() {
+            return tags.length;
+        }
+
+        String utf8(int index) {
+            return utf8[index];
+        }
+
+        String className(int index) {
+            return utf8[readShort(bytes, offsets[index])];
+        }
+
+        String refOwner(int index) {
+            return className(readShort(bytes, offsets[index]));
+        }
+
+        String refName(int index) {
+            return utf8[readShort(bytes, offsets[readShort(bytes, offsets[index] + 2)])];
+        }
+
+        String refDescriptor(int index) {
+            return utf8[readShort(bytes, offsets[readShort(bytes, offsets[index] + 2)] + 2)];
+        }
+
+        private static String decodeUtf8(byte[] bytes, int offset, int length) {
+            // Modified UTF-8 only differs from UTF-8 for nulls and supplementary characters, which never appear in
+            // the names the transformer compares
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+
+
+    static class ClassModel {
+
+        final byte[] bytes;
+        final int minorVersion;
+        final int majorVersion;
+        final ConstantPool pool;
+        final int access;
+        final String name;
+        final Map<String, Integer> members = new HashMap<>();
+        final Map<String, Integer> memberOffsets = new HashMap<>();
+        final List<Integer> codeOffsets = new ArrayList<>();
+        final List<String> attributes = new ArrayList<>();
+        final String sourcePath;
+
+        /**
+         * Parses a class file
+         * @param bytes The class file
+         * @throws IOException If the class file is malformed
+         */
+        ClassModel(byte[] bytes) throws IOException {
+
+            this.bytes = bytes;
+            if(readInt(bytes, 0) != 0xCAFEBABE) {
+                throw new IOException("Not a class file!");
+            }
+            this.minorVersion = readShort(bytes, 4);
+            this.majorVersion = readShort(bytes, 6);
+            this.pool = new ConstantPool(bytes, readShort(bytes, 8));
+
+            int offset = pool.end;
+            this.access = readShort(bytes, offset);
+            this.name = pool.className(readShort(bytes, offset + 2));
+            offset += 6;
+            offset += 2 + readShort(bytes, offset) * 2;
+
+            for(int pass = 0 ; pass < 2 ; pass++) {
+                int count = readShort(bytes, offset);
+                offset += 2;
+                for(int i = 0 ; i < count ; i++) {
+                    String member = pool.utf8(readShort(bytes, offset + 2)) + pool.utf8(readShort(bytes, offset + 4));
+                    members.put(member, readShort(bytes, offset));
+                    memberOffsets.put(member, offset);
+                    int attributeCount = readShort(bytes, offset + 6);
+                    offset += 8;
+                    for(int j = 0 ; j < attributeCount ; j++) {
+                        String attribute = pool.utf8(readShort(bytes, offset));
+                        int length = readInt(bytes, offset + 2);
+                        if(pass == 1 && "Code".equals(attribute)) {
+                            // Skip max_stack and max_locals, leaving the code length
+                            codeOffsets.add(offset + 10);
+                        }
+                        offset += 6 + length;
+                    }
+                }
+            }
+
+            String sourceFile = null;
+            int attributeCount = readShort(bytes, offset);
+            offset += 2;
+            for(int i = 0 ; i < attributeCount ; i++) {
+                String attribute = pool.utf8(readShort(bytes, offset));
+                if("SourceFile".equals(attribute)) sourceFile = pool.utf8(readShort(bytes, offset + 6));
+                attributes.add(attribute);
+                offset += 6 + readInt(bytes, offset + 2);
+            }
+
+            int index = name.lastIndexOf('/');
+            this.sourcePath = sourceFile == null ? null : index == -1 ? sourceFile : name.substring(0, index + 1) + sourceFile;
+        }
+
+        boolean hasAttribute(String attribute) {
+            return attributes.contains(attribute);
+        }
+
+        boolean isInterface() {
+            return (access & ACC_INTERFACE) != 0;
+        }
+
+        boolean isModuleInfo() {
+            return "module-info".equals(name);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Transforms compiled classes for an older version inside a worker daemon. The worker runs on the toolchain of the
+ * target version, so the target's API is checked by looking up JDK classes and members in the worker's own JVM.
+ * Classes are parsed, transformed and written in parallel, one class file at a time.
+ */
+public abstract class DowngradeWork implements WorkAction<DowngradeWork.Parameters> {
+
+    private static final int MAX_REPORTED_ERRORS = 50;
+
+    public interface Parameters extends WorkParameters {
+
+        ConfigurableFileCollection getClasses();
+
+        ConfigurableFileCollection getClasspath();
+
+        SetProperty<String> getOverriddenSources();
+
+        Property<Integer> getTargetVersion();
+
+        Property<String> getStubPackage();
+
+        DirectoryProperty getDestinationDirectory();
+
+    }
+
+    @Override
+    public void execute() {
+
+        int version = getParameters().getTargetVersion().get();
+        File destination = getParameters().getDestinationDirectory().get().getAsFile();
+        Set<String> overridden = getParameters().getOverriddenSources().get();
+
+        Map<String, DowngradeTransformer.ClassModel> classes = new ConcurrentHashMap<>();
+        Map<String, DowngradeTransformer.ClassModel> byPath = new ConcurrentHashMap<>();
+        try {
+            Map<String, Path> files = new HashMap<>();
+            for(File dir : getParameters().getClasses()) {
+                if(!dir.isDirectory()) continue;
+                try(Stream<Path> stream = Files.walk(dir.toPath())) {
+                    stream.filter(path -> path.toString().endsWith(".class")).forEach(path -> files.putIfAbsent(dir.toPath().relativize(path).toString(), path));
+                }
+            }
+
+            files.entrySet().parallelStream().forEach(entry -> {
+                try {
+                    DowngradeTransformer.ClassModel model = new DowngradeTransformer.ClassModel(Files.readAllBytes(entry.getValue()));
+                    classes.put(model.name, model);
+                    byPath.put(entry.getKey(), model);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Unable to read " + entry.getValue(), ex);
+                }
+            });
+
+            if(destination.exists()) {
+                try(Stream<Path> stream = Files.walk(destination.toPath())) {
+                    stream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+            Files.createDirectories(destination.toPath());
+
+        } catch (IOException | UncheckedIOException ex) {
+            throw new GradleException("Unable to read classes to downgrade to Java " + version + "!", ex);
+        }
+
+        String stubPackage = getParameters().getStubPackage().getOrNull();
+        try(ReflectiveApi api = new ReflectiveApi(getParameters().getClasspath().getFiles())) {
+
+            DowngradeTransformer transformer = new DowngradeTransformer(version, stubPackage == null ? null : stubPackage.replace('.', '/'), classes, api);
+            List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+            byPath.entrySet().parallelStream().forEach(entry -> {
+                DowngradeTransformer.ClassModel model = entry.getValue();
+                // Classes compiled from overridden sources are replaced by the version's own classes
+                if(model.sourcePath != null && overridden.contains(model.sourcePath)) return;
+                try {
+                    byte[] out = transformer.transform(model, errors);
+                    if(out == null) return;
+                    Path path = destination.toPath().resolve(entry.getKey());
+                    Files.createDirectories(path.getParent());
+                    Files.write(path, out);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Unable to downgrade " + model.name, ex);
+                }
+            });
+
+            if(!errors.isEmpty()) {
+                List<String> sorted = errors.stream().sorted().collect(Collectors.toList());
+                StringBuilder message = new StringBuilder("Unable to downgrade classes to Java " + version + ":");
+                for(String error : sorted.subList(0, Math.min(sorted.size(), MAX_REPORTED_ERRORS))) {
+                    message.append("\n  - ").append(error);
+                }
+                if(sorted.size() > MAX_REPORTED_ERRORS) {
+                    message.append("\n  ... and ").append(sorted.size() - MAX_REPORTED_ERRORS).append(" more");
+                }
+                throw new GradleException(message.toString());
+            }
+
+        } catch (IOException | UncheckedIOException ex) {
+            throw new GradleException("Unable to downgrade classes to Java " + version + "!", ex);
+        }
+    }
+
+
+    /**
+     * Looks up references in the JVM the worker runs on. Classes on the compile classpath belong to libraries, and are
+     * never checked. Classes in JDK packages which cannot be loaded by the platform class loader are missing.
+     */
+    private static class ReflectiveApi implements DowngradeTransformer.JdkApi, AutoCloseable {
+
+        private static final String[] JDK_PACKAGES = { "java/", "javax/", "jdk/", "sun/", "com/sun/", "org/ietf/jgss/", "org/w3c/dom/", "org/xml/sax/" };
+
+        private final URLClassLoader libraries;
+        private final ClassLoader platform = ClassLoader.getSystemClassLoader().getParent();
+        private final Map<String, Optional<Class<?>>> jdkClasses = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> members = new ConcurrentHashMap<>();
+
+        ReflectiveApi(Collection<File> classpath) throws IOException {
+            List<URL> urls = new ArrayList<>();
+            for(File file : classpath) {
+                try {
+                    urls.add(file.toURI().toURL());
+                } catch (MalformedURLException ex) {
+                    throw new IOException("Invalid classpath entry " + file, ex);
+                }
+            }
+            this.libraries = new URLClassLoader(urls.toArray(new URL[0]), null);
+        }
+
+        @Override
+        public boolean isMissingClass(String name) {
+            return isJdkClass(name) && !getJdkClass(name).isPresent();
+        }
+
+        @Override
+        public boolean isMissingMember(String owner, String name, String descriptor, boolean field) {
+            Optional<Class<?>> type = isJdkClass(owner) ? getJdkClass(owner) : Optional.empty();
+            if(!type.isPresent()) return false;
+
+            Set<String> available = members.computeIfAbsent(owner, key -> getMembers(type.get()));
+            if(field) return !available.contains(name + ":" + descriptor);
+            return !available.contains(name + descriptor) && !available.contains(name + "*");
+        }
+
+        @Override
+        public void close() throws IOException {
+            libraries.close();
+        }
+
+        private boolean isJdkClass(String name) {
+            for(String prefix : JDK_PACKAGES) {
+                if(name.startsWith(prefix)) {
+                    return libraries.findResource(name + ".class") == null;
+                }
+            }
+            return false;
+        }
+
+        private Optional<Class<?>> getJdkClass(String name) {
+            return jdkClasses.computeIfAbsent(name, key -> {
+                try {
+                    return Optional.of(Class.forName(key.replace('/', '.'), false, platform));
+                } catch (ClassNotFoundException | LinkageError ex) {
+                    return Optional.empty();
+                }
+            });
+        }
+
+        private static Set<String> getMembers(Class<?> type) {
+
+            Set<String> out = new HashSet<>();
+            Deque<Class<?>> queue = new ArrayDeque<>();
+            Set<Class<?>> visited = new HashSet<>();
+            queue.add(type);
+            while(!queue.isEmpty()) {
+                Class<?> current = queue.poll();
+                if(!visited.add(current)) continue;
+
+                for(Field field : current.getDeclaredFields()) {
+                    out.add(field.getName() + ":" + getDescriptor(field.getType()));
+                }
+                for(Method method : current.getDeclaredMethods()) {
+                    out.add(method.getName() + getDescriptor(method.getParameterTypes(), method.getReturnType()));
+                    // Signature polymorphic methods accept any descriptor
+                    if(Modifier.isNative(method.getModifiers()) && method.isVarArgs() && method.getParameterCount() == 1
+                            && method.getParameterTypes()[0] == Object[].class
+                            && current.getName().startsWith("java.lang.invoke.")) {
+                        out.add(method.getName() + "*");
+                    }
+                }
+                for(Constructor<?> constructor : current.getDeclaredConstructors()) {
+                    out.add("<init>" + getDescriptor(constructor.getParameterTypes(), void.class));
+                }
+
+                if(current.getSuperclass() != null) queue.add(current.getSuperclass());
+                if(current.isInterface()) queue.add(Object.class);
+                queue.addAll(Arrays.asList(current.getInterfaces()));
+            }
+            return out;
+        }
+
+        private static String getDescriptor(Class<?>[] parameters, Class<?> returnType) {
+            StringBuilder out = new StringBuilder("(");
+            for(Class<?> parameter : parameters) {
+                out.append(getDescriptor(parameter));
+            }
+            return out.append(")").append(getDescriptor(returnType)).toString();
+        }
+
+        private static String getDescriptor(Class<?> type) {
+            if(type.isArray()) return type.getName().replace('.', '/');
+            if(type == void.class) return "V";
+            if(type == boolean.class) return "Z";
+            if(type == byte.class) return "B";
+            if(type == char.class) return "C";
+            if(type == short.class) return "S";
+            if(type == int.class) return "I";
+            if(type == long.class) return "J";
+            if(type == float.class) return "F";
+            if(type == double.class) return "D";
+            return "L" + type.getName().replace('.', '/') + ";";
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.file.Directory;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Starts a Java Flight Recording in a forked JVM, which is written to the given directory when the JVM exits. The JVM
+ * names each recording after its process ID, so every JVM a task forks writes its own recording. OpenJDK supports
+ * flight recordings on Java 11 and above, and on Java 8 from update 262. On other versions, no arguments are added.
+ */
+class FlightRecordingArguments implements CommandLineArgumentProvider {
+
+    static final String OPTION = "-XX:StartFlightRecording";
+
+    private static final int MIN_JAVA_8_UPDATE = 262;
+
+    private final int version;
+    private final Provider<JavaLauncher> launcher;
+    private final Provider<Directory> directory;
+
+    FlightRecordingArguments(int version, Provider<JavaLauncher> launcher, Provider<Directory> directory) {
+        this.version = version;
+        this.launcher = launcher;
+        this.directory = directory;
+    }
+
+    @Input
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+
+        if(!isSupported()) return Collections.emptyList();
+
+        // The JVM only generates a file name if the directory already exists
+        File dir = directory.get().getAsFile();
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Unable to create flight recording directory " + dir + "!");
+        }
+        return Collections.singletonList(OPTION + "=filename=" + dir.getAbsolutePath() + ",settings=profile,dumponexit=true");
+    }
+
+    private boolean isSupported() {
+
+        if(version >= 11) return true;
+        if(version != 8) return false;
+
+        // Java 8 runtime versions look like 1.8.0_392-b08
+        String runtime = launcher.get().getMetadata().getJavaRuntimeVersion();
+        int start = runtime.indexOf('_') + 1;
+        int end = start;
+        while(end < runtime.length() && Character.isDigit(runtime.charAt(end))) end++;
+        return start > 0 && end > start && Integer.parseInt(runtime.substring(start, end)) >= MIN_JAVA_8_UPDATE;
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which recording directories were written by tasks which ran in the current build, so the
+ * {@link FlightRecordingSummary} does not report recordings of tasks which were up-to-date or loaded from the build
+ * cache.
+ */
+public abstract class FlightRecordingService implements BuildService<BuildServiceParameters.None> {
+
+    private final Set<File> recorded = ConcurrentHashMap.newKeySet();
+
+    void recorded(File directory) {
+        recorded.add(directory.getAbsoluteFile());
+    }
+
+    boolean wasRecorded(File directory) {
+        return recorded.contains(directory.getAbsoluteFile());
+    }
+
+}
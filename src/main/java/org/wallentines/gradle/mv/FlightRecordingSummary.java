@@ -0,0 +1,404 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+import org.gradle.work.DisableCachingByDefault;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Summarizes the flight recordings of each version side by side: the methods which were sampled most often, the
+ * allocation sites which allocated the most memory, garbage collection pauses, and the classes whose monitors or locks
+ * threads waited on the longest. Recordings are read with the {@code jfr} tool of each version's own JDK. Only the
+ * recordings of tasks which ran in the current build are summarized, so recordings left by tasks which were up-to-date
+ * or loaded from the build cache are skipped.
+ */
+@DisableCachingByDefault(because = "Recordings differ on every run, so a cached summary would never be reused")
+public abstract class FlightRecordingSummary extends DefaultTask {
+
+    private static final String EVENTS = "jdk.ExecutionSample,jdk.ObjectAllocationSample,jdk.ObjectAllocationInNewTLAB,"
+            + "jdk.ObjectAllocationOutsideTLAB,jdk.GarbageCollection,jdk.JavaMonitorEnter,jdk.ThreadPark";
+
+    private final List<VersionedRecordings> versionedRecordings = new ArrayList<>();
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Nested
+    public List<VersionedRecordings> getVersionedRecordings() {
+        return versionedRecordings;
+    }
+
+    /**
+     * How many methods, allocation sites and lock classes to list for each version
+     * @return The number of entries per section
+     */
+    @Input
+    public abstract Property<Integer> getTopCount();
+
+    /**
+     * The service which knows which tasks wrote their recordings in the current build
+     * @return The service
+     */
+    @Internal
+    public abstract Property<FlightRecordingService> getService();
+
+    @OutputFile
+    public abstract RegularFileProperty getReport();
+
+    @OutputFile
+    public abstract RegularFileProperty getTable();
+
+    /**
+     * Adds the recordings of a version
+     * @param version The version the recordings were made on
+     * @param launcher The version's launcher, whose JDK contains the jfr tool
+     * @param recordings The directory containing the version's recordings
+     */
+    public void recordings(int version, Provider<JavaLauncher> launcher, Object recordings) {
+        VersionedRecordings out = getObjectFactory().newInstance(VersionedRecordings.class);
+        out.getVersion().set(version);
+        out.getJavaLauncher().set(launcher);
+        out.getRecordings().from(recordings);
+        versionedRecordings.add(out);
+    }
+
+    @TaskAction
+    public void summarize() throws IOException {
+
+        FlightRecordingService service = getService().get();
+        TreeMap<Integer, Summary> summaries = new TreeMap<>();
+        int skipped = 0;
+        for(VersionedRecordings recordings : versionedRecordings) {
+
+            // Each task writes its recordings to its own directory
+            List<File> files = new ArrayList<>();
+            for(File file : recordings.getRecordings().getAsFileTree()) {
+                if(!file.getName().endsWith(".jfr")) continue;
+                if(service.wasRecorded(file.getParentFile())) {
+                    files.add(file);
+                } else {
+                    skipped++;
+                }
+            }
+            if(files.isEmpty()) continue;
+
+            File tool = getTool(recordings.getJavaLauncher().get());
+            Summary summary = summaries.computeIfAbsent(recordings.getVersion().get(), key -> new Summary());
+            for(File file : files) {
+                summary.add(print(tool, file));
+                summary.recordings++;
+            }
+        }
+
+        if(skipped > 0) {
+            getLogger().warn("Skipped {} flight recordings of tasks which did not run in this build", skipped);
+        }
+
+        int top = getTopCount().get();
+        StringBuilder table = new StringBuilder();
+        appendSection(table, "Top CPU methods (share of samples)", summaries, summary -> summary.samples, top, (value, total) ->
+                String.format(Locale.ROOT, "%.1f%%", value / total * 100));
+        appendSection(table, "Allocation hotspots (allocated memory)", summaries, summary -> summary.allocations, top, (value, total) ->
+                String.format(Locale.ROOT, "%.1f MB", value / (1024 * 1024)));
+        appendSection(table, "Lock contention (time blocked)", summaries, summary -> summary.locks, top, (value, total) ->
+                String.format(Locale.ROOT, "%.1f ms", value / 1000000));
+
+        table.append(String.format(Locale.ROOT, "%n%-80s", "Garbage collection"));
+        for(int version : summaries.keySet()) table.append(String.format(Locale.ROOT, " %16s", "Java " + version));
+        appendRow(table, "Collections", summaries, summary -> String.valueOf(summary.collections));
+        appendRow(table, "Total pause", summaries, summary -> String.format(Locale.ROOT, "%.1f ms", summary.totalPause / 1000000.0));
+        appendRow(table, "Longest pause", summaries, summary -> String.format(Locale.ROOT, "%.1f ms", summary.longestPause / 1000000.0));
+        appendRow(table, "Recordings", summaries, summary -> String.valueOf(summary.recordings));
+        table.append('\n');
+
+        write(getTable().get().getAsFile(), table.toString());
+        write(getReport().get().getAsFile(), toJson(summaries, top));
+        getLogger().lifecycle(table.toString());
+    }
+
+
+    private Map<String, Object> print(File tool, File recording) throws IOException {
+
+        File json = new File(getTemporaryDir(), recording.getName() + ".json");
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        ExecResult result;
+        try(OutputStream out = Files.newOutputStream(json.toPath())) {
+            result = getExecOperations().exec(spec -> {
+                spec.setExecutable(tool);
+                spec.args("print", "--json", "--stack-depth", "1", "--events", EVENTS, recording.getAbsolutePath());
+                spec.setStandardOutput(out);
+                spec.setErrorOutput(error);
+                spec.setIgnoreExitValue(true);
+            });
+        }
+        if(result.getExitValue() != 0) {
+            throw new GradleException("Unable to read flight recording " + recording + ":\n" + new String(error.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        try {
+            return asMap(JsonReader.read(new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8)));
+        } finally {
+            Files.deleteIfExists(json.toPath());
+        }
+    }
+
+    private static File getTool(JavaLauncher launcher) {
+
+        File bin = launcher.getMetadata().getInstallationPath().dir("bin").getAsFile();
+        for(String name : new String[] { "jfr", "jfr.exe" }) {
+            File tool = new File(bin, name);
+            if(tool.isFile()) return tool;
+        }
+        throw new GradleException("Unable to find the jfr tool in " + bin + "!");
+    }
+
+    private static void appendSection(StringBuilder table, String title, TreeMap<Integer, Summary> summaries, Section section, int top, Format format) {
+
+        // Each version's top entries are listed, ordered by their largest share in any version
+        Map<String, Double> rank = new HashMap<>();
+        for(Summary summary : summaries.values()) {
+            Counter counter = section.get(summary);
+            for(Map.Entry<String, Double> entry : counter.top(top)) {
+                rank.merge(entry.getKey(), entry.getValue() / counter.total, Math::max);
+            }
+        }
+        List<String> keys = new ArrayList<>(rank.keySet());
+        keys.sort((a, b) -> Double.compare(rank.get(b), rank.get(a)));
+
+        table.append(String.format(Locale.ROOT, "%n%-80s", title));
+        for(int version : summaries.keySet()) table.append(String.format(Locale.ROOT, " %16s", "Java " + version));
+        for(String key : keys) {
+            table.append(String.format(Locale.ROOT, "%n%-80s", key.length() > 80 ? "..." + key.substring(key.length() - 77) : key));
+            for(Summary summary : summaries.values()) {
+                Counter counter = section.get(summary);
+                Double value = counter.values.get(key);
+                table.append(String.format(Locale.ROOT, " %16s", value == null ? "" : format.format(value, counter.total)));
+            }
+        }
+        table.append('\n');
+    }
+
+    private static void appendRow(StringBuilder table, String title, TreeMap<Integer, Summary> summaries, Cell cell) {
+        table.append(String.format(Locale.ROOT, "%n%-80s", title));
+        for(Summary summary : summaries.values()) {
+            table.append(String.format(Locale.ROOT, " %16s", cell.get(summary)));
+        }
+    }
+
+    private static String toJson(TreeMap<Integer, Summary> summaries, int top) {
+
+        StringBuilder json = new StringBuilder("{\n  \"versions\": {");
+        boolean first = true;
+        for(Map.Entry<Integer, Summary> entry : summaries.entrySet()) {
+            Summary summary = entry.getValue();
+            json.append(first ? "\n" : ",\n").append("    ").append(quote(entry.getKey().toString())).append(": {\n");
+            json.append("      \"recordings\": ").append(summary.recordings).append(",\n");
+            json.append("      \"executionSamples\": ").append((long) summary.samples.total).append(",\n");
+            json.append("      \"cpu\": ").append(toJson(summary.samples, top, 1)).append(",\n");
+            json.append("      \"allocatedBytes\": ").append((long) summary.allocations.total).append(",\n");
+            json.append("      \"allocations\": ").append(toJson(summary.allocations, top, 1)).append(",\n");
+            json.append("      \"gc\": { \"collections\": ").append(summary.collections)
+                    .append(", \"totalPauseMs\": ").append(summary.totalPause / 1000000.0)
+                    .append(", \"longestPauseMs\": ").append(summary.longestPause / 1000000.0).append(" },\n");
+            json.append("      \"lockContentionMs\": ").append(toJson(summary.locks, top, 1000000.0)).append("\n    }");
+            first = false;
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    private static String toJson(Counter counter, int top, double scale) {
+        StringBuilder json = new StringBuilder("{");
+        boolean first = true;
+        for(Map.Entry<String, Double> entry : counter.top(top)) {
+            if(!first) json.append(", ");
+            json.append(quote(entry.getKey())).append(": ").append(entry.getValue() / scale);
+            first = false;
+        }
+        return json.append("}").toString();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        if(!(value instanceof Map)) throw new GradleException("Unexpected flight recording format!");
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        if(!(value instanceof List)) throw new GradleException("Unexpected flight recording format!");
+        return (List<Object>) value;
+    }
+
+    private static double asDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+    }
+
+    private static long asNanos(Object value) {
+        return value instanceof String ? Duration.parse((String) value).toNanos() : 0L;
+    }
+
+    private static String getClassName(Object type) {
+        if(!(type instanceof Map)) return "<unknown>";
+        return String.valueOf(asMap(type).get("name")).replace('/', '.');
+    }
+
+    private static String getTopFrame(Map<String, Object> values) {
+
+        Object stackTrace = values.get("stackTrace");
+        if(!(stackTrace instanceof Map)) return "<no stack trace>";
+        List<Object> frames = asList(asMap(stackTrace).get("frames"));
+        if(frames.isEmpty()) return "<no stack trace>";
+
+        Map<String, Object> method = asMap(asMap(frames.get(0)).get("method"));
+        return getClassName(method.get("type")) + "." + method.get("name");
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    private static class Counter {
+
+        final Map<String, Double> values = new HashMap<>();
+        double total;
+
+        void add(String key, double value) {
+            values.merge(key, value, Double::sum);
+            total += value;
+        }
+
+        List<Map.Entry<String, Double>> top(int count) {
+            List<Map.Entry<String, Double>> out = new ArrayList<>(values.entrySet());
+            out.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+            return out.subList(0, Math.min(count, out.size()));
+        }
+    }
+
+
+    private static class Summary {
+
+        final Counter samples = new Counter();
+        final Counter allocations = new Counter();
+        final Counter locks = new Counter();
+        int recordings;
+        int collections;
+        long totalPause;
+        long longestPause;
+
+        void add(Map<String, Object> recording) {
+
+            List<Object> events = asList(asMap(recording.get("recording")).get("events"));
+
+            // Newer JDKs record sampled allocations instead of every TLAB, and only those are counted when present
+            boolean sampled = false;
+            for(Object event : events) {
+                if("jdk.ObjectAllocationSample".equals(asMap(event).get("type"))) {
+                    sampled = true;
+                    break;
+                }
+            }
+
+            for(Object event : events) {
+                Map<String, Object> map = asMap(event);
+                Map<String, Object> values = asMap(map.get("values"));
+                switch (String.valueOf(map.get("type"))) {
+                    case "jdk.ExecutionSample":
+                        samples.add(getTopFrame(values), 1);
+                        break;
+                    case "jdk.ObjectAllocationSample":
+                        allocations.add(getTopFrame(values) + " (" + getClassName(values.get("objectClass")) + ")", asDouble(values.get("weight")));
+                        break;
+                    case "jdk.ObjectAllocationInNewTLAB":
+                        if(!sampled) allocations.add(getTopFrame(values) + " (" + getClassName(values.get("objectClass")) + ")", asDouble(values.get("tlabSize")));
+                        break;
+                    case "jdk.ObjectAllocationOutsideTLAB":
+                        if(!sampled) allocations.add(getTopFrame(values) + " (" + getClassName(values.get("objectClass")) + ")", asDouble(values.get("allocationSize")));
+                        break;
+                    case "jdk.GarbageCollection":
+                        collections++;
+                        totalPause += asNanos(values.get("sumOfPauses"));
+                        longestPause = Math.max(longestPause, asNanos(values.get("longestPause")));
+                        break;
+                    case "jdk.JavaMonitorEnter":
+                        locks.add(getClassName(values.get("monitorClass")) + " (monitor)", asNanos(values.get("duration")));
+                        break;
+                    case "jdk.ThreadPark":
+                        locks.add(getClassName(values.get("parkedClass")) + " (park)", asNanos(values.get("duration")));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+
+    private interface Section {
+        Counter get(Summary summary);
+    }
+
+    private interface Format {
+        String format(double value, double total);
+    }
+
+    private interface Cell {
+        String get(Summary summary);
+    }
+
+
+    /**
+     * The flight recordings of a specific version
+     */
+    public static abstract class VersionedRecordings {
+
+        @Input
+        public abstract Property<Integer> getVersion();
+
+        @Nested
+        public abstract Property<JavaLauncher> getJavaLauncher();
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.RELATIVE)
+        public abstract ConfigurableFileCollection getRecordings();
+
+    }
+
+}
@@ -0,0 +1,32 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tells the JMH runner to write its results as JSON to the given file, so they can be compared across versions
+ */
+class JmhArguments implements CommandLineArgumentProvider {
+
+    private final Provider<RegularFile> results;
+
+    JmhArguments(Provider<RegularFile> results) {
+        this.results = results;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+
+        // JMH does not create the parent directory of the results file
+        File file = results.get().getAsFile();
+        if(!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IllegalStateException("Unable to create benchmark results directory " + file.getParentFile() + "!");
+        }
+        return Arrays.asList("-rf", "json", "-rff", file.getAbsolutePath());
+    }
+
+}
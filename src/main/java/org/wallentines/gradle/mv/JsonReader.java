@@ -0,0 +1,194 @@
+package org.wallentines.gradle.mv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON reader, used to read the result files of external tools. Objects are read as maps, arrays as lists,
+ * numbers as doubles, and literals as booleans or null.
+ */
+class JsonReader {
+
+    private final String json;
+    private int index;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Reads a JSON value from the given string
+     * @param json The string to read
+     * @return The value
+     * @throws IOException If the string is not valid JSON
+     */
+    static Object read(String json) throws IOException {
+
+        JsonReader reader = new JsonReader(json);
+        Object out = reader.readValue();
+        reader.skipWhitespace();
+        if(reader.index != json.length()) {
+            throw reader.error("Unexpected trailing characters");
+        }
+        return out;
+    }
+
+
+    private Object readValue() throws IOException {
+
+        skipWhitespace();
+        if(index >= json.length()) throw error("Unexpected end of input");
+
+        char c = json.charAt(index);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return true;
+            case 'f':
+                expect("false");
+                return false;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                if(c == '-' || Character.isDigit(c)) return readNumber();
+
+                // Some tools write NaN without quotes for metrics which could not be computed
+                if(json.startsWith("NaN", index)) {
+                    expect("NaN");
+                    return Double.NaN;
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+
+        Map<String, Object> out = new LinkedHashMap<>();
+        index++;
+        skipWhitespace();
+        if(peek() == '}') {
+            index++;
+            return out;
+        }
+
+        while(true) {
+            skipWhitespace();
+            if(peek() != '"') throw error("Expected a key");
+            String key = readString();
+
+            skipWhitespace();
+            if(peek() != ':') throw error("Expected ':'");
+            index++;
+
+            out.put(key, readValue());
+
+            skipWhitespace();
+            char c = peek();
+            index++;
+            if(c == '}') return out;
+            if(c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+
+    private List<Object> readArray() throws IOException {
+
+        List<Object> out = new ArrayList<>();
+        index++;
+        skipWhitespace();
+        if(peek() == ']') {
+            index++;
+            return out;
+        }
+
+        while(true) {
+            out.add(readValue());
+
+            skipWhitespace();
+            char c = peek();
+            index++;
+            if(c == ']') return out;
+            if(c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+
+    private String readString() throws IOException {
+
+        StringBuilder out = new StringBuilder();
+        index++;
+        while(true) {
+            char c = peek();
+            index++;
+            if(c == '"') return out.toString();
+            if(c != '\\') {
+                out.append(c);
+                continue;
+            }
+
+            char escape = peek();
+            index++;
+            switch (escape) {
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if(index + 4 > json.length()) throw error("Invalid unicode escape");
+                    try {
+                        out.append((char) Integer.parseInt(json.substring(index, index + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Invalid unicode escape");
+                    }
+                    index += 4;
+                    break;
+                default: out.append(escape);
+            }
+        }
+    }
+
+    private Double readNumber() throws IOException {
+
+        int start = index;
+        while(index < json.length() && "+-0123456789.eE".indexOf(json.charAt(index)) != -1) {
+            index++;
+        }
+        try {
+            return Double.parseDouble(json.substring(start, index));
+        } catch (NumberFormatException ex) {
+            throw error("Invalid number");
+        }
+    }
+
+    private void expect(String literal) throws IOException {
+        if(!json.startsWith(literal, index)) {
+            throw error("Expected " + literal);
+        }
+        index += literal.length();
+    }
+
+    private char peek() throws IOException {
+        if(index >= json.length()) throw error("Unexpected end of input");
+        return json.charAt(index);
+    }
+
+    private void skipWhitespace() {
+        while(index < json.length() && Character.isWhitespace(json.charAt(index))) {
+            index++;
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at index " + index + "!");
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileCopyDetails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Excludes files from a multi-release jar's versioned directory when the root of the jar already contains a file which
+ * can be used in its place on that version. Class files are considered the same if they only differ in their class
+ * file version, as long as the root copy can be loaded by the target version.
+ */
+class MultiReleaseFilter implements Action<FileCopyDetails> {
+
+    private static final int CLASS_HEADER_LENGTH = 8;
+    private static final int FIRST_MAJOR_VERSION = 44;
+
+    private final FileCollection root;
+    private final int version;
+
+    MultiReleaseFilter(FileCollection root, int version) {
+        this.root = root;
+        this.version = version;
+    }
+
+    @Override
+    public void execute(FileCopyDetails details) {
+
+        String path = details.getRelativeSourcePath().getPathString();
+        for(File dir : root.getFiles()) {
+
+            File existing = new File(dir, path);
+            if(!existing.isFile()) continue;
+
+            try {
+                if(isEquivalent(Files.readAllBytes(existing.toPath()), Files.readAllBytes(details.getFile().toPath()), path.endsWith(".class"), version)) {
+                    details.exclude();
+                }
+            } catch (IOException ex) {
+                throw new GradleException("Unable to compare " + path + " with the root of the jar!", ex);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Determines whether a file in the root of a multi-release jar can be used in place of a versioned copy
+     * @param rootBytes The contents of the root copy
+     * @param versionBytes The contents of the versioned copy
+     * @param classFile Whether the file is a class file
+     * @param version The version the versioned copy is for
+     * @return Whether the root copy is equivalent on that version
+     */
+    static boolean isEquivalent(byte[] rootBytes, byte[] versionBytes, boolean classFile, int version) {
+
+        if(!classFile || rootBytes.length < CLASS_HEADER_LENGTH || versionBytes.length < CLASS_HEADER_LENGTH) {
+            return Arrays.equals(rootBytes, versionBytes);
+        }
+
+        int rootMajor = ((rootBytes[6] & 0xFF) << 8) | (rootBytes[7] & 0xFF);
+        if(rootMajor > FIRST_MAJOR_VERSION + version || rootBytes.length != versionBytes.length) {
+            return false;
+        }
+
+        for(int i = CLASS_HEADER_LENGTH ; i < rootBytes.length ; i++) {
+            if(rootBytes[i] != versionBytes[i]) return false;
+        }
+        return true;
+    }
+
+}
@@ -1,6 +1,9 @@
 package org.wallentines.gradle.mv;
 
+import org.gradle.api.Action;
+import org.gradle.api.Describable;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.ConfigurationContainer;
 import org.gradle.api.artifacts.dsl.DependencyHandler;
@@ -10,30 +13,46 @@ import org.gradle.api.attributes.Usage;
 import org.gradle.api.attributes.java.TargetJvmVersion;
 import org.gradle.api.component.AdhocComponentWithVariants;
 import org.gradle.api.component.ConfigurationVariantDetails;
+import org.gradle.api.file.Directory;
 import org.gradle.api.file.DuplicatesStrategy;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.FileTree;
+import org.gradle.api.file.RegularFile;
 import org.gradle.api.file.SourceDirectorySet;
 import org.gradle.api.plugins.ApplicationPlugin;
 import org.gradle.api.plugins.JavaApplication;
+import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginExtension;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.*;
 import org.gradle.api.tasks.compile.AbstractCompile;
 import org.gradle.api.tasks.compile.JavaCompile;
 import org.gradle.api.tasks.testing.Test;
+import org.gradle.build.event.BuildEventsListenerRegistry;
+import org.gradle.api.tasks.bundling.ZipEntryCompression;
 import org.gradle.jvm.tasks.Jar;
 import org.gradle.jvm.toolchain.JavaCompiler;
 import org.gradle.jvm.toolchain.JavaLanguageVersion;
 import org.gradle.jvm.toolchain.JavaLauncher;
 import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.gradle.language.base.plugins.LifecycleBasePlugin;
+import org.gradle.process.JavaForkOptions;
+import org.gradle.workers.WorkerExecutor;
+import org.wallentines.gradle.mv.launcher.Launcher;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class MultiVersionExtension {
 
@@ -42,11 +61,45 @@ public class MultiVersionExtension {
     private final JavaToolchainService toolchainService;
 
     private final HashMap<SourceSet, Map<Integer, SourceDirectorySet>> directorySets = new HashMap<>();
+    private final HashMap<SourceDirectorySet, OverrideIndex> overrideIndices = new HashMap<>();
+    private final HashMap<SourceSet, SharedClasses> sharedClasses = new HashMap<>();
+    private final HashMap<JavaLanguageVersion, Provider<JavaCompiler>> compilers = new HashMap<>();
+    private final HashMap<JavaLanguageVersion, Provider<JavaLauncher>> launchers = new HashMap<>();
+    private final TreeSet<Integer> declaredVersions = new TreeSet<>();
+    private final ListProperty<Integer> versions;
+    private final Property<Integer> lazyDefaultVersion;
+    private final Provider<String> requestedVersions;
+    private final Provider<String> allTests;
+    private final VersionModel model;
 
     private int defaultVersion = 0;
     private boolean useSourceDirectorySets = false;
     private boolean skipApiGuardianDependency = false;
     private boolean noExtend = false;
+    private boolean shareCompiledClasses = false;
+    private boolean downgradeBytecode = false;
+    private String downgradeStubPackage;
+    private boolean parallelCompilation = false;
+    private int maxParallelCompilations = 0;
+    private boolean multiRelease = false;
+    private boolean deltaJars = false;
+    private boolean compressResourcesOnce = false;
+    private final TreeSet<Integer> multiReleaseVersions = new TreeSet<>();
+    private final Map<Jar, DefaultVersionFilter> defaultVersionFilters = new HashMap<>();
+    private boolean testMatrix = false;
+    private boolean selectImpactedTests = false;
+    private int fullTestRunInterval = 0;
+    private boolean benchmarks = false;
+    private boolean launcherJar = false;
+    private boolean cdsArchives = false;
+    private boolean flightRecordings = false;
+    private String cdsTrainingMainClass;
+    private ResolutionSharing resolutionSharing;
+    private Provider<BuildMetrics> buildMetrics;
+    private int testShards = 1;
+    private final HashMap<Integer, RuntimeProfile> runtimeProfiles = new HashMap<>();
+    private final HashMap<Integer, Integer> versionTestShards = new HashMap<>();
+    private final HashMap<Integer, List<OverrideIndex>> testSelectionOverrides = new HashMap<>();
 
 
     /**
@@ -73,6 +126,232 @@ public class MultiVersionExtension {
     }
 
 
+    /**
+     * Sets the flag to compile main classes which are not overridden by any additional version only once, for the
+     * lowest additional version, and share them between all additional versions. See the README for more details
+     */
+    public void shareCompiledClasses() {
+        this.shareCompiledClasses = true;
+    }
+
+
+    /**
+     * Sets the flag to compile main classes once with the highest version's toolchain, and to produce each additional
+     * version's classes by transforming them for that version. Only supported when using source sets. See the README
+     * for more details
+     */
+    public void downgradeBytecode() {
+        this.downgradeBytecode = true;
+    }
+
+
+    /**
+     * Sets the flag to compile main classes once with the highest version's toolchain, and to produce each additional
+     * version's classes by transforming them for that version. Calls to JDK methods which are missing on a version are
+     * redirected to stubs in the given package. Only supported when using source sets. See the README for more details
+     * @param stubPackage The package containing stub classes, such as "com.example.stubs"
+     */
+    public void downgradeBytecode(String stubPackage) {
+        this.downgradeBytecode = true;
+        this.downgradeStubPackage = stubPackage;
+    }
+
+
+    /**
+     * Sets the flag to package versions 9 and above into the default jar as a multi-release jar, rather than producing
+     * a separate jar for each version. See the README for more details
+     */
+    public void multiReleaseJar() {
+        this.multiRelease = true;
+    }
+
+
+    /**
+     * Sets the flag to write a delta jar for each version when comparing versioned jars, containing only the entries
+     * which differ from the default jar. See the README for more details
+     */
+    public void deltaJars() {
+        this.deltaJars = true;
+    }
+
+
+    /**
+     * Sets the flag to compress the resources of each source set once, and copy the compressed entries into every
+     * versioned jar rather than compressing them again for each version. See the README for more details
+     */
+    public void compressResourcesOnce() {
+        this.compressResourcesOnce = true;
+    }
+
+
+    /**
+     * Sets the flag to compile all versions of a source set in parallel, in worker daemons which use each version's
+     * toolchain. See the README for more details
+     */
+    public void parallelCompilation() {
+        this.parallelCompilation = true;
+    }
+
+
+    /**
+     * Sets the flag to compile all versions of a source set in parallel, running at most the given number of versioned
+     * compilations at once. See the README for more details
+     * @param maxParallelCompilations The maximum number of versioned compile tasks which may run at the same time
+     */
+    public void parallelCompilation(int maxParallelCompilations) {
+        if(maxParallelCompilations < 1) {
+            throw new IllegalArgumentException("Maximum parallel compilations must be at least 1!");
+        }
+        this.parallelCompilation = true;
+        this.maxParallelCompilations = maxParallelCompilations;
+    }
+
+
+    /**
+     * Sets the flag to run versioned tests as a test matrix, with each version's tests running at the same time and
+     * their results collected into one report. See the README for more details
+     */
+    public void testMatrix() {
+        this.testMatrix = true;
+    }
+
+
+    /**
+     * Sets the flag to run versioned tests as a test matrix, splitting each version's tests into the given number of
+     * shards by their durations in the previous run. See the README for more details
+     * @param shards The number of forked test JVMs for each version
+     */
+    public void testMatrix(int shards) {
+        if(shards < 1) {
+            throw new IllegalArgumentException("Test shard count must be at least 1!");
+        }
+        this.testMatrix = true;
+        this.testShards = shards;
+    }
+
+
+    /**
+     * Sets the number of shards to split a specific version's tests into when running the test matrix. Must be called
+     * before declaring the version. See the README for more details
+     * @param version The version to configure
+     * @param shards The number of forked test JVMs for the version
+     */
+    public void testShards(int version, int shards) {
+        if(shards < 1) {
+            throw new IllegalArgumentException("Test shard count must be at least 1!");
+        }
+        this.versionTestShards.put(version, shards);
+    }
+
+
+    /**
+     * Sets the flag to only run the versioned tests which are affected by changes since their last successful run, or
+     * by classes overridden for their version. See the README for more details
+     */
+    public void selectImpactedTests() {
+        this.selectImpactedTests = true;
+    }
+
+
+    /**
+     * Sets the flag to only run the versioned tests which are affected by changes since their last successful run, or
+     * by classes overridden for their version, running every test after the given number of selective runs. See the
+     * README for more details
+     * @param fullRunInterval The number of selective runs of a test task between runs of all its tests
+     */
+    public void selectImpactedTests(int fullRunInterval) {
+        if(fullRunInterval < 1) {
+            throw new IllegalArgumentException("Full test run interval must be at least 1!");
+        }
+        this.selectImpactedTests = true;
+        this.fullTestRunInterval = fullRunInterval;
+    }
+
+
+    /**
+     * Configures the JVM settings of every run, test, benchmark and CDS archive task of a specific version. Must be
+     * called before declaring the version. See the README for more details
+     * @param version The version to configure
+     * @param action The action to configure the version's runtime profile
+     */
+    public void version(int version, Action<? super RuntimeProfile> action) {
+        if(version == defaultVersion || declaredVersions.contains(version)) {
+            throw new IllegalStateException("The runtime profile of Java " + version + " must be configured before declaring the version!");
+        }
+        action.execute(runtimeProfiles.computeIfAbsent(version, v -> project.getObjects().newInstance(RuntimeProfile.class)));
+    }
+
+
+    /**
+     * Sets the flag to share the dependency resolution of the default classpaths with versioned classpaths which would
+     * resolve to the same graph. See the README for more details
+     */
+    public void shareDependencyResolution() {
+        if(resolutionSharing != null) return;
+        resolutionSharing = new ResolutionSharing(project.getObjects());
+        project.getGradle().getTaskGraph().whenReady(graph -> resolutionSharing.report(project.getLogger(), project.getPath()));
+    }
+
+
+    /**
+     * Sets the flag to assemble a launcher jar, which contains the jar for each version and runs the one which best
+     * matches the Java version it is started with. See the README for more details
+     */
+    public void launcherJar() {
+        this.launcherJar = true;
+    }
+
+
+    /**
+     * Sets the flag to register a task for each version of Java 11 or above which dumps a class data sharing archive
+     * by running the application's main class. See the README for more details
+     */
+    public void cdsArchives() {
+        this.cdsArchives = true;
+    }
+
+
+    /**
+     * Sets the flag to register a task for each version of Java 11 or above which dumps a class data sharing archive
+     * by running the given training main class. See the README for more details
+     * @param trainingMainClass The main class to run when dumping archives. It must exit once it is done.
+     */
+    public void cdsArchives(String trainingMainClass) {
+        this.cdsArchives = true;
+        this.cdsTrainingMainClass = trainingMainClass;
+    }
+
+
+    /**
+     * Sets the flag to record the duration, outcome, input counts and toolchain of every task the plugin registers,
+     * and to report them per version at the end of the build. See the README for more details
+     */
+    public void buildMetrics() {
+        if(buildMetrics != null) return;
+        buildMetrics = project.getGradle().getSharedServices().registerIfAbsent(BUILD_METRICS_SERVICE_NAME, BuildMetrics.class, spec ->
+                spec.getParameters().getReport().convention(project.getRootProject().getLayout().getBuildDirectory().file("reports/multiVersion/buildMetrics.json")));
+        getBuildEventsListenerRegistry().onTaskCompletion(buildMetrics);
+    }
+
+
+    /**
+     * Sets the flag to record every run, test and benchmark task of each version with Java Flight Recorder, and to
+     * summarize the recordings of every version side by side. See the README for more details
+     */
+    public void flightRecordings() {
+        this.flightRecordings = true;
+    }
+
+
+    /**
+     * Sets the flag to create a JMH benchmark source set and run task for each version. Only supported when using
+     * source sets. See the README for more details
+     */
+    public void benchmarks() {
+        this.benchmarks = true;
+    }
+
+
     /**
      * Gets the default java version
      * @return The default java version
@@ -81,6 +360,16 @@ public class MultiVersionExtension {
         return defaultVersion;
     }
 
+    @Inject
+    protected WorkerExecutor getWorkerExecutor() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Inject
+    protected BuildEventsListenerRegistry getBuildEventsListenerRegistry() {
+        throw new UnsupportedOperationException();
+    }
+
     @Inject
     public MultiVersionExtension(Project project, JavaToolchainService toolchainService) {
 
@@ -88,6 +377,13 @@ public class MultiVersionExtension {
         this.sourceSets = project.getExtensions().getByType(JavaPluginExtension.class).getSourceSets();
         this.toolchainService = toolchainService;
 
+        this.versions = project.getObjects().listProperty(Integer.class);
+        this.lazyDefaultVersion = project.getObjects().property(Integer.class);
+        this.requestedVersions = project.getProviders().gradleProperty(REQUESTED_VERSIONS_PROPERTY);
+        this.allTests = project.getProviders().gradleProperty(ALL_TESTS_PROPERTY);
+        this.model = project.getGradle().getExtensions().findByType(VersionModel.class);
+
+        project.afterEvaluate(p -> setupLazyVersions());
     }
 
     /**
@@ -104,23 +400,51 @@ public class MultiVersionExtension {
         setupVersion(version, true);
     }
 
+    /**
+     * Creates a version override which will be applied to the default compile and jar tasks. The version is not read
+     * until the project has been evaluated
+     * @param version A provider for the version to target
+     */
+    public void defaultVersion(Provider<Integer> version) {
+
+        if(defaultVersion != 0 || lazyDefaultVersion.isPresent()) {
+            throw new IllegalStateException("Cannot set default version more than once!");
+        }
+
+        lazyDefaultVersion.set(version);
+    }
+
     /**
      * Adds additional source (directory) sets which will be compiled for the given versions
      * @param versions The JVM versions to target
      */
     public void additionalVersions(int... versions) {
         for(int i : versions) {
+            if(!isRequested(i)) continue;
+
+            declaredVersions.add(i);
             setupVersion(i, false);
         }
     }
 
+    /**
+     * Gets the additional versions which will be set up once the project has been evaluated. Unlike
+     * {@link #additionalVersions(int...)}, nothing is set up for these versions until then, so they can be provided by
+     * Gradle properties, environment variables or version catalogs, and declared before any flags. See the README for
+     * more details
+     * @return A list property of additional versions
+     */
+    public ListProperty<Integer> getVersions() {
+        return versions;
+    }
+
     /**
      * Gets the compile task for the given version within the main source set
      * @param version The version to lookup
-     * @return A reference to the compile task for that version
+     * @return A provider for the compile task for that version
      * @throws org.gradle.api.UnknownDomainObjectException If there is no compile task for the given version
      */
-    public JavaCompile getCompileTask(int version) {
+    public TaskProvider<JavaCompile> getCompileTask(int version) {
 
         return getCompileTask(version, sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME));
     }
@@ -129,25 +453,26 @@ public class MultiVersionExtension {
      * Gets the compile task for the given within the given source set
      * @param version The version to lookup
      * @param set The source set to look into.
-     * @return A reference to the compile task for that version
+     * @return A provider for the compile task for that version
      * @throws org.gradle.api.UnknownDomainObjectException If there is no compile task for the given version
      */
-    public JavaCompile getCompileTask(int version, SourceSet set) {
+    public TaskProvider<JavaCompile> getCompileTask(int version, SourceSet set) {
 
-        return (JavaCompile) project.getTasks().getByName(
+        return project.getTasks().named(
                 defaultVersion == version ?
                         set.getCompileTaskName("java") :
-                        getCompileTaskName(version, set)
+                        getCompileTaskName(version, set),
+                JavaCompile.class
         );
     }
 
     /**
      * Gets the jar task for the given version within the main source set
      * @param version The version to lookup
-     * @return A reference to the jar task for that version
+     * @return A provider for the jar task for that version
      * @throws org.gradle.api.UnknownDomainObjectException If there is no jar task for the given version
      */
-    public Jar getJarTask(int version) {
+    public TaskProvider<Jar> getJarTask(int version) {
 
         return getJarTask(version, sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME));
     }
@@ -156,15 +481,16 @@ public class MultiVersionExtension {
      * Gets the jar task for the given within the given source set
      * @param version The version to lookup
      * @param set The source set to look into.
-     * @return A reference to the jar task for that version
+     * @return A provider for the jar task for that version
      * @throws org.gradle.api.UnknownDomainObjectException If there is no jar task for the given version
      */
-    public Jar getJarTask(int version, SourceSet set) {
+    public TaskProvider<Jar> getJarTask(int version, SourceSet set) {
 
-        return (Jar) project.getTasks().getByName(
-                defaultVersion == version ?
+        return project.getTasks().named(
+                defaultVersion == version || multiReleaseVersions.contains(version) ?
                         set.getJarTaskName() :
-                        getJarTaskName(version, set)
+                        getJarTaskName(version, set),
+                Jar.class
         );
     }
 
@@ -202,6 +528,41 @@ public class MultiVersionExtension {
     }
 
 
+    private void setupLazyVersions() {
+
+        lazyDefaultVersion.finalizeValue();
+        versions.finalizeValue();
+
+        if(lazyDefaultVersion.isPresent()) {
+            defaultVersion(lazyDefaultVersion.get());
+        } else if(defaultVersion == 0 && model != null && model.getDefaultVersion() != 0) {
+            defaultVersion(model.getDefaultVersion());
+        }
+
+        // Versions declared in the settings script were already filtered by the requested versions
+        if(model != null) {
+            for(int version : model.getAdditionalVersions()) {
+                if(version == defaultVersion || declaredVersions.contains(version)) continue;
+
+                declaredVersions.add(version);
+                setupVersion(version, false);
+            }
+        }
+
+        for(int version : new TreeSet<>(versions.get())) {
+            if(version == defaultVersion || declaredVersions.contains(version) || !isRequested(version)) continue;
+
+            declaredVersions.add(version);
+            setupVersion(version, false);
+        }
+    }
+
+
+    private boolean isRequested(int version) {
+        return VersionModel.isRequested(requestedVersions.getOrNull(), REQUESTED_VERSIONS_PROPERTY, version);
+    }
+
+
     private void setupVersion(int version, boolean defaultVersion) {
 
         String name = getSourceSetName(version);
@@ -212,7 +573,20 @@ public class MultiVersionExtension {
             throw new IllegalStateException("Main source set must exist!");
         }
 
+        if(downgradeBytecode && shareCompiledClasses) {
+            throw new IllegalStateException("Downgrading bytecode cannot be combined with sharing compiled classes!");
+        }
+
+        addRuntimeProfileValidation(version);
+        addFlightRecordingSummary(version);
+
         if(useSourceDirectorySets) {
+            if(benchmarks) {
+                throw new IllegalStateException("Benchmarks are only supported when using source sets!");
+            }
+            if(downgradeBytecode) {
+                throw new IllegalStateException("Downgrading bytecode is only supported when using source sets!");
+            }
             setupSourceDirectorySet(version, name, mainJava, mainTest, defaultVersion);
         } else {
             setupSourceSet(version, name, mainJava, mainTest, defaultVersion);
@@ -224,7 +598,7 @@ public class MultiVersionExtension {
     private void setupSourceDirectorySet(int version, String name, SourceSet sourceSet, SourceSet testSet, boolean defaultVersion) {
 
         JavaLanguageVersion javaVersion = JavaLanguageVersion.of(version);
-        Provider<JavaLauncher> targetLauncher = toolchainService.launcherFor(spec -> spec.getLanguageVersion().convention(javaVersion));
+        Provider<JavaLauncher> targetLauncher = getLauncher(javaVersion);
         ConfigurationContainer configurations = project.getConfigurations();
         TaskContainer tasks = project.getTasks();
 
@@ -232,22 +606,41 @@ public class MultiVersionExtension {
         SourceDirectorySet java = addSourceDirectorySet(name, version, sourceSet, defaultVersion);
         cacheSourceDirectorySet(sourceSet, version, java);
 
-        Jar jarTask;
+        FileCollection classes = defaultVersion ?
+                project.files(java.getClassesDirectory()) :
+                project.files(java.getClassesDirectory(), getSharedOutput(sourceSet));
+
+        TaskProvider<Jar> jarTask;
 
         if(defaultVersion) {
 
-            jarTask = (Jar) tasks.getByName(sourceSet.getJarTaskName());
+            jarTask = tasks.named(sourceSet.getJarTaskName(), Jar.class);
+
+        } else if(isMultiRelease(version)) {
+
+            jarTask = tasks.named(sourceSet.getJarTaskName(), Jar.class, task -> {
+                task.dependsOn(tasks.named(getClassesTaskName(version, sourceSet)));
+                addMultiReleaseContents(task, sourceSet, version, classes);
+            });
+            setupMultiReleaseVersion(sourceSet, version);
 
         } else {
             // Jar
+            Provider<RegularFile> compressedResources = getCompressedResources(sourceSet);
             jarTask = tasks.register(getJarTaskName(version, sourceSet), Jar.class, task -> {
                 task.setGroup("build");
-                task.dependsOn(tasks.getByName(getClassesTaskName(version, sourceSet)));
-                task.dependsOn(tasks.getByName(sourceSet.getProcessResourcesTaskName()));
+                task.dependsOn(tasks.named(getClassesTaskName(version, sourceSet)));
+                task.dependsOn(tasks.named(sourceSet.getProcessResourcesTaskName()));
                 task.getArchiveClassifier().set(name);
-                task.from(java.getDestinationDirectory().get().getAsFile(), sourceSet.getOutput().getResourcesDir());
-            }).get();
-            tasks.getByName("assemble").dependsOn(jarTask);
+                task.from(classes);
+                addResources(task, sourceSet, compressedResources);
+                task.getOutputs().cacheIf("Versioned jars are cached so they can be reused between checkouts", CACHE_ALWAYS);
+
+                // Versioned copies of shared classes come first
+                if(isSharingClasses(sourceSet)) task.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
+            });
+            tasks.named("assemble", task -> task.dependsOn(jarTask));
+            addJarComparison(sourceSet, version, jarTask);
 
             Configuration implementation = configurations.getByName(configurationNameOf(sourceSet.getImplementationConfigurationName(), version));
 
@@ -261,16 +654,27 @@ public class MultiVersionExtension {
 
         }
 
+        // Multi-release versions other than the default one share the default jar
+        if(defaultVersion || !isMultiRelease(version)) {
+            jarTask.configure(task -> recordMetrics(task, version, null));
+            addLauncherPayload(sourceSet, version, jarTask);
+        }
+        addCdsArchive(sourceSet, version, jarTask, getVersionedClasspath(configurations.getByName(configurationNameOf(sourceSet.getRuntimeClasspathConfigurationName(), version)),
+                sourceSet.getRuntimeClasspathConfigurationName(), version), targetLauncher);
+
         // Application
         project.getPluginManager().withPlugin("application", plugin -> {
 
             JavaApplication application = project.getExtensions().getByType(JavaApplication.class);
-            FileCollection runtimeClasspath = configurations.getByName(configurationNameOf(sourceSet.getRuntimeClasspathConfigurationName(), version)).plus(project.files(java.getDestinationDirectory()));
+            FileCollection runtimeClasspath = getVersionedClasspath(configurations.getByName(configurationNameOf(sourceSet.getRuntimeClasspathConfigurationName(), version)),
+                    sourceSet.getRuntimeClasspathConfigurationName(), version).plus(classes);
             JavaPluginExtension javaExtension = project.getExtensions().getByType(JavaPluginExtension.class);
 
             if(defaultVersion) {
                 tasks.named("run", JavaExec.class, task -> {
                     task.getJavaLauncher().convention(targetLauncher);
+                    configureRuntime(task, version);
+                    recordMetrics(task, version, null);
                     task.setClasspath(getRuntimeClasspath(task, jarTask, runtimeClasspath));
                 });
             } else {
@@ -278,6 +682,8 @@ public class MultiVersionExtension {
                     task.setGroup(ApplicationPlugin.APPLICATION_GROUP);
                     task.setClasspath(getRuntimeClasspath(task, jarTask, runtimeClasspath));
                     task.getJavaLauncher().convention(targetLauncher);
+                    configureRuntime(task, version);
+                    recordMetrics(task, version, null);
                     task.getMainClass().convention(application.getMainClass());
                     task.getMainModule().convention(application.getMainModule());
                     task.getModularity().getInferModulePath().convention(javaExtension.getModularity().getInferModulePath());
@@ -305,23 +711,37 @@ public class MultiVersionExtension {
 
         if(!defaultVersion) {
 
-            Configuration testCompileClasspath = configurations.getByName(configurationNameOf(testSet.getCompileClasspathConfigurationName(), version));
-            Configuration testRuntimeClasspath = configurations.getByName(configurationNameOf(testSet.getRuntimeClasspathConfigurationName(), version));
+            FileCollection testCompileClasspath = getVersionedClasspath(configurations.getByName(configurationNameOf(testSet.getCompileClasspathConfigurationName(), version)),
+                    testSet.getCompileClasspathConfigurationName(), version);
+            FileCollection testRuntimeClasspath = getVersionedClasspath(configurations.getByName(configurationNameOf(testSet.getRuntimeClasspathConfigurationName(), version)),
+                    testSet.getRuntimeClasspathConfigurationName(), version);
 
-            JavaCompile testCompile = getCompileTask(version, testSet);
-            testCompile.setClasspath(project.getObjects().fileCollection().from(testCompileClasspath, project.files(java.getDestinationDirectory())));
-            testCompile.dependsOn(getCompileTask(version, sourceSet));
+            tasks.named(getCompileTaskName(version, testSet), JavaCompile.class, task -> {
+                task.setClasspath(project.getObjects().fileCollection().from(testCompileClasspath, classes));
+            });
 
             TaskProvider<Test> testTask = tasks.register(name + "Test", Test.class, task -> {
                 task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
                 task.getJavaLauncher().convention(targetLauncher);
-                task.dependsOn(tasks.getByName(getClassesTaskName(version, testSet)));
+                configureRuntime(task, version);
+                recordMetrics(task, version, null);
+                task.dependsOn(tasks.named(getClassesTaskName(version, testSet)));
 
-                task.setClasspath(project.getObjects().fileCollection().from(testCompile.getDestinationDirectory().getAsFile().get(), java.getDestinationDirectory().getAsFile().get(), testRuntimeClasspath));
+                task.setTestClassesDirs(project.files(test.getClassesDirectory()));
+                task.setClasspath(project.getObjects().fileCollection().from(test.getClassesDirectory(), classes, testRuntimeClasspath));
             });
 
             tasks.named("check", task -> task.dependsOn(testTask));
+            configureTestSelection(testTask, version, java, test);
+            configureTestMatrix(testTask, version);
+
+        } else {
 
+            TaskProvider<Test> testTask = tasks.named(JavaPlugin.TEST_TASK_NAME, Test.class, task -> {
+                recordMetrics(task, version, null);
+                configureRuntime(task, version);
+            });
+            configureTestMatrix(testTask, version);
         }
     }
 
@@ -359,17 +779,20 @@ public class MultiVersionExtension {
         }
 
         // Compile Task
-        Provider<JavaCompiler> targetCompiler = toolchainService.compilerFor(spec -> spec.getLanguageVersion().convention(javaVersion));
+        Provider<JavaCompiler> targetCompiler = getCompiler(javaVersion);
+        Provider<JavaLauncher> targetLauncher = getLauncher(javaVersion);
 
         if(defaultVersion) {
 
-            tasks.named(parent.getCompileJavaTaskName(), JavaCompile.class, task -> {
+            TaskProvider<JavaCompile> compileTask = tasks.named(parent.getCompileJavaTaskName(), JavaCompile.class, task -> {
                 task.getJavaCompiler().convention(targetCompiler);
+                recordMetrics(task, version, java);
 
                 FileTree source = task.getSource();
-                task.setSource(java.getSourceDirectories().plus(filterSources(source, parent.getJava(), java).getAsFileTree()));
+                task.setSource(java.getSourceDirectories().plus(filterSources(source, java)));
             });
             java.getDestinationDirectory().convention(parent.getJava().getDestinationDirectory());
+            java.compiledBy(compileTask, AbstractCompile::getDestinationDirectory);
 
         } else {
 
@@ -377,12 +800,14 @@ public class MultiVersionExtension {
             final String sourceSetChildPath = "classes/" + name + "/" + parent.getName();
             java.getDestinationDirectory().convention(project.getLayout().getBuildDirectory().dir(sourceSetChildPath));
 
+            shareOverrides(parent, java);
+
             TaskProvider<JavaCompile> compileTask = tasks.register(getCompileTaskName(version, parent), JavaCompile.class, (task) -> {
 
-                task.setSource(java.getSourceDirectories().plus(filterSources(parent.getJava().getSourceDirectories(), parent.getJava(), java)));
+                task.setSource(java.getSourceDirectories().plus(getVersionedSources(parent, java)));
 
                 task.getJavaCompiler().convention(targetCompiler);
-                task.setClasspath(compileClasspath);
+                task.setClasspath(getVersionedClasspath(compileClasspath, parent.getCompileClasspathConfigurationName(), version).plus(getSharedOutput(parent)));
 
                 String generatedHeadersDir = "generated/sources/headers/" + name + "/" + parent.getName();
                 task.getOptions().getHeaderOutputDirectory().convention(project.getLayout().getBuildDirectory().dir(generatedHeadersDir));
@@ -393,6 +818,8 @@ public class MultiVersionExtension {
 
                 task.getDestinationDirectory().convention(java.getDestinationDirectory());
 
+                configureParallelCompilation(task, targetLauncher);
+                recordMetrics(task, version, java);
             });
             java.compiledBy(compileTask, AbstractCompile::getDestinationDirectory);
 
@@ -420,6 +847,20 @@ public class MultiVersionExtension {
         });
         cacheSourceDirectorySet(sourceSet, version, java.getJava());
 
+        if(!defaultVersion) {
+            java.setCompileClasspath(getVersionedClasspath(configurations.getByName(java.getCompileClasspathConfigurationName()), sourceSet.getCompileClasspathConfigurationName(), version));
+            java.setRuntimeClasspath(java.getOutput().plus(getVersionedClasspath(configurations.getByName(java.getRuntimeClasspathConfigurationName()), sourceSet.getRuntimeClasspathConfigurationName(), version)));
+        }
+
+        if(!defaultVersion) shareOverrides(sourceSet, java.getJava());
+        boolean downgrade = downgradeBytecode && !defaultVersion;
+        FileCollection sharedOutput = downgrade ?
+                getDowngradedOutput(sourceSet, java, version) :
+                getSharedOutput(sourceSet);
+        FileCollection output = defaultVersion ?
+                java.getOutput() :
+                java.getOutput().plus(sharedOutput);
+
         Configuration javaImpl = configurations.getByName(java.getImplementationConfigurationName(), conf ->
                 conf.getAttributes().attribute(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE, version));
 
@@ -450,44 +891,62 @@ public class MultiVersionExtension {
 
 
         // Compilation
-        Provider<JavaCompiler> targetCompiler = toolchainService.compilerFor(spec -> spec.getLanguageVersion().convention(javaVersion));
-        Provider<JavaLauncher> targetLauncher = toolchainService.launcherFor(spec -> spec.getLanguageVersion().convention(javaVersion));
+        Provider<JavaCompiler> targetCompiler = getCompiler(javaVersion);
+        Provider<JavaLauncher> targetLauncher = getLauncher(javaVersion);
 
-        Jar jarTask;
+        TaskProvider<Jar> jarTask;
 
 
-        TaskProvider<JavaCompile> compileTask = tasks.named(java.getCompileJavaTaskName(), JavaCompile.class, task -> {
+        tasks.named(java.getCompileJavaTaskName(), JavaCompile.class, task -> {
             task.getJavaCompiler().convention(targetCompiler);
 
+            // Downgraded versions only compile their overrides
             FileTree source = task.getSource();
-            task.setSource(source.plus(filterSources(sourceSet.getJava().getSourceDirectories().getAsFileTree(), sourceSet.getJava(), java.getJava())).getAsFileTree());
+            if(!downgrade) task.setSource(source.plus(getVersionedSources(sourceSet, java.getJava())).getAsFileTree());
+            if(!defaultVersion) task.setClasspath(task.getClasspath().plus(sharedOutput));
+
+            configureParallelCompilation(task, targetLauncher);
+            recordMetrics(task, version, java.getJava());
         });
 
         if(defaultVersion) {
 
-            tasks.named(sourceSet.getJarTaskName(), Jar.class, task -> {
-                task.dependsOn(compileTask);
+            jarTask = tasks.named(sourceSet.getJarTaskName(), Jar.class, task -> {
+                task.dependsOn(tasks.named(java.getClassesTaskName()));
                 task.from(java.getJava().getDestinationDirectory(), java.getOutput().getResourcesDir(), sourceSet.getOutput().getResourcesDir());
 
                 task.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
             });
 
-            jarTask = (Jar) tasks.getByName(sourceSet.getJarTaskName());
+        } else if(isMultiRelease(version)) {
+
+            jarTask = tasks.named(sourceSet.getJarTaskName(), Jar.class, task -> {
+                task.dependsOn(tasks.named(java.getClassesTaskName()));
+                addMultiReleaseContents(task, sourceSet, version, java.getJava().getDestinationDirectory(), sharedOutput, java.getOutput().getResourcesDir());
+            });
+            setupMultiReleaseVersion(sourceSet, version);
 
         } else {
 
             // Jars
-            jarTask = tasks.create(java.getJarTaskName(), Jar.class, task -> {
+            Provider<RegularFile> compressedResources = getCompressedResources(sourceSet);
+            jarTask = tasks.register(java.getJarTaskName(), Jar.class, task -> {
 
                 task.setGroup("build");
-                task.dependsOn(sourceSet.getProcessResourcesTaskName());
-                task.dependsOn(compileTask);
-                task.from(java.getJava().getDestinationDirectory(), java.getOutput().getResourcesDir(), sourceSet.getOutput().getResourcesDir());
+                task.dependsOn(tasks.named(sourceSet.getProcessResourcesTaskName()));
+                task.dependsOn(tasks.named(java.getClassesTaskName()));
+                task.from(java.getJava().getDestinationDirectory(), sharedOutput, java.getOutput().getResourcesDir());
+                addResources(task, sourceSet, compressedResources);
                 task.getArchiveClassifier().set(name);
+                task.getOutputs().cacheIf("Versioned jars are cached so they can be reused between checkouts", CACHE_ALWAYS);
+
+                // Versioned copies of shared classes come first
+                if(isSharingClasses(sourceSet)) task.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
 
             });
 
-            tasks.getByName("assemble").dependsOn(jarTask);
+            tasks.named("assemble", task -> task.dependsOn(jarTask));
+            addJarComparison(sourceSet, version, jarTask);
 
 
             // Variant Artifacts
@@ -500,6 +959,14 @@ public class MultiVersionExtension {
 
         }
 
+        // Multi-release versions other than the default one share the default jar
+        if(defaultVersion || !isMultiRelease(version)) {
+            jarTask.configure(task -> recordMetrics(task, version, null));
+            addLauncherPayload(sourceSet, version, jarTask);
+        }
+        addCdsArchive(sourceSet, version, jarTask, getVersionedClasspath(configurations.getByName(java.getRuntimeClasspathConfigurationName()),
+                sourceSet.getRuntimeClasspathConfigurationName(), version), targetLauncher);
+
         // Application
         project.getPluginManager().withPlugin("application", plugin -> {
             JavaApplication application = project.getExtensions().getByType(JavaApplication.class);
@@ -507,14 +974,18 @@ public class MultiVersionExtension {
 
             if(defaultVersion) {
                 tasks.named("run", JavaExec.class, task -> {
-                    task.setClasspath(getRuntimeClasspath(task, jarTask, java.getRuntimeClasspath()).plus(java.getOutput()));
+                    task.setClasspath(getRuntimeClasspath(task, jarTask, java.getRuntimeClasspath()).plus(output));
                     task.getJavaLauncher().convention(targetLauncher);
+                    configureRuntime(task, version);
+                    recordMetrics(task, version, null);
                 });
             } else {
                 tasks.register(name + "Run", JavaExec.class, task -> {
                     task.setGroup(ApplicationPlugin.APPLICATION_GROUP);
-                    task.setClasspath(getRuntimeClasspath(task, jarTask, java.getRuntimeClasspath()).plus(java.getOutput()));
+                    task.setClasspath(getRuntimeClasspath(task, jarTask, java.getRuntimeClasspath()).plus(output));
                     task.getJavaLauncher().convention(targetLauncher);
+                    configureRuntime(task, version);
+                    recordMetrics(task, version, null);
                     task.getMainClass().convention(application.getMainClass());
                     task.getMainModule().convention(application.getMainModule());
                     task.getModularity().getInferModulePath().convention(javaExtension.getModularity().getInferModulePath());
@@ -528,12 +999,15 @@ public class MultiVersionExtension {
             SourceSet test = sourceSets.create(name + "Test");
             cacheSourceDirectorySet(testSet, version, test.getJava());
 
-            JavaCompile testCompileTask = tasks.named(test.getCompileJavaTaskName(), JavaCompile.class, task -> {
+            tasks.named(test.getCompileJavaTaskName(), JavaCompile.class, task -> {
                 task.getJavaCompiler().convention(targetCompiler);
 
                 FileTree source = task.getSource();
-                task.setSource(source.plus(filterSources(testSet.getJava().getSourceDirectories().getAsFileTree(), testSet.getJava(), test.getJava()).getAsFileTree()));
-            }).get();
+                task.setSource(source.plus(filterSources(testSet.getJava().getSourceDirectories().getAsFileTree(), test.getJava())));
+
+                configureParallelCompilation(task, targetLauncher);
+                recordMetrics(task, version, test.getJava());
+            });
 
 
             Configuration testImpl = configurations.getByName(test.getImplementationConfigurationName());
@@ -549,16 +1023,512 @@ public class MultiVersionExtension {
             }
 
             testImpl.getDependencies().add(dependencies.create(java.getOutput().getClassesDirs()));
+            if(isSharingClasses(sourceSet) || downgrade) testImpl.getDependencies().add(dependencies.create(sharedOutput));
             testImpl.getDependencies().add(dependencies.create(sourceSet.getOutput().getClassesDirs()));
 
             TaskProvider<Test> testTask = tasks.register(name + "Test", Test.class, task -> {
                 task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
                 task.getJavaLauncher().convention(targetLauncher);
-                task.setClasspath(project.getObjects().fileCollection().from(testCompileTask.getDestinationDirectory(), java.getOutput(), testRuntimeClasspath));
+                configureRuntime(task, version);
+                recordMetrics(task, version, null);
+                task.setTestClassesDirs(test.getOutput().getClassesDirs());
+                task.setClasspath(project.getObjects().fileCollection().from(test.getOutput(), output, testRuntimeClasspath));
             });
 
             tasks.named("check", task -> task.dependsOn(testTask));
+            if(!defaultVersion) configureTestSelection(testTask, version, java.getJava(), test.getJava());
+            configureTestMatrix(testTask, version);
+        }
+
+        // Benchmarks
+        if(benchmarks) {
+
+            SourceSet jmhSet = getBenchmarkSourceSet();
+            SourceSet jmh = sourceSets.create(name + "Jmh");
+            cacheSourceDirectorySet(jmhSet, version, jmh.getJava());
+
+            tasks.named(jmh.getCompileJavaTaskName(), JavaCompile.class, task -> {
+                task.getJavaCompiler().convention(targetCompiler);
+
+                FileTree source = task.getSource();
+                task.setSource(source.plus(filterSources(jmhSet.getJava().getSourceDirectories().getAsFileTree(), jmh.getJava())));
+
+                configureParallelCompilation(task, targetLauncher);
+                recordMetrics(task, version, jmh.getJava());
+            });
+
+            Configuration jmhImpl = configurations.getByName(jmh.getImplementationConfigurationName());
+            if(!noExtend) {
+                jmhImpl.extendsFrom(configurations.getByName(jmhSet.getImplementationConfigurationName()));
+                configurations.getByName(jmh.getCompileOnlyConfigurationName()).extendsFrom(configurations.getByName(jmhSet.getCompileOnlyConfigurationName()));
+                configurations.getByName(jmh.getAnnotationProcessorConfigurationName()).extendsFrom(configurations.getByName(jmhSet.getAnnotationProcessorConfigurationName()));
+            }
+
+            jmhImpl.getDependencies().add(dependencies.create(java.getOutput().getClassesDirs()));
+            if(isSharingClasses(sourceSet) || downgrade) jmhImpl.getDependencies().add(dependencies.create(sharedOutput));
+            jmhImpl.getDependencies().add(dependencies.create(sourceSet.getOutput().getClassesDirs()));
+
+            Provider<RegularFile> results = project.getLayout().getBuildDirectory().file("results/jmh/" + name + ".json");
+            TaskProvider<JavaExec> jmhTask = tasks.register(name + "Jmh", JavaExec.class, task -> {
+                task.setGroup(BENCHMARK_GROUP);
+                task.setDescription("Runs the JMH benchmarks on Java " + version + ".");
+                task.getJavaLauncher().convention(targetLauncher);
+                configureRuntime(task, version);
+                task.getMainClass().convention("org.openjdk.jmh.Main");
+                task.setClasspath(jmh.getRuntimeClasspath().plus(output));
+                task.getArgumentProviders().add(new JmhArguments(results));
+                recordMetrics(task, version, null);
+            });
+
+            addBenchmarkComparison(version, jmhTask, results);
+        }
+    }
+
+
+    private SourceSet getBenchmarkSourceSet() {
+
+        SourceSet existing = sourceSets.findByName(BENCHMARK_SOURCE_SET_NAME);
+        if(existing != null) return existing;
+
+        // Benchmarks are compiled against the default version's main classes, like tests
+        SourceSet main = sourceSets.getByName(SourceSet.MAIN_SOURCE_SET_NAME);
+        SourceSet jmh = sourceSets.create(BENCHMARK_SOURCE_SET_NAME);
+        jmh.setCompileClasspath(jmh.getCompileClasspath().plus(main.getOutput()));
+        jmh.setRuntimeClasspath(jmh.getRuntimeClasspath().plus(main.getOutput()));
+
+        ConfigurationContainer configurations = project.getConfigurations();
+        configurations.getByName(jmh.getImplementationConfigurationName()).extendsFrom(configurations.getByName(main.getImplementationConfigurationName()));
+        configurations.getByName(jmh.getRuntimeOnlyConfigurationName()).extendsFrom(configurations.getByName(main.getRuntimeOnlyConfigurationName()));
+
+        return jmh;
+    }
+
+
+    private void addBenchmarkComparison(int version, TaskProvider<JavaExec> jmhTask, Provider<RegularFile> results) {
+
+        TaskContainer tasks = project.getTasks();
+        if(!tasks.getNames().contains(BENCHMARKS_TASK_NAME)) {
+            TaskProvider<CompareBenchmarks> compare = tasks.register(COMPARE_BENCHMARKS_TASK_NAME, CompareBenchmarks.class, task -> {
+                task.setGroup(BENCHMARK_GROUP);
+                task.setDescription("Compares the JMH results of each version, and with the baseline if one is set.");
+                task.getReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/benchmarks.json"));
+                task.getTable().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/benchmarks.txt"));
+            });
+            tasks.register(BENCHMARKS_TASK_NAME, task -> {
+                task.setGroup(BENCHMARK_GROUP);
+                task.setDescription("Runs the JMH benchmarks for every version and compares their results.");
+                task.finalizedBy(compare);
+            });
+        }
+
+        tasks.named(BENCHMARKS_TASK_NAME, task -> task.dependsOn(jmhTask));
+        tasks.named(COMPARE_BENCHMARKS_TASK_NAME, CompareBenchmarks.class, task -> {
+            task.mustRunAfter(jmhTask);
+            task.results(version, results);
+        });
+    }
+
+
+    private boolean isMultiRelease(int version) {
+
+        // Versioned directories in multi-release jars are only supported since Java 9
+        return multiRelease && version >= 9;
+    }
+
+
+    private void addMultiReleaseContents(Jar task, SourceSet parent, int version, Object... contents) {
+
+        task.getManifest().getAttributes().put("Multi-Release", "true");
+        task.into("META-INF/versions/" + version, spec -> {
+            spec.from(contents);
+            spec.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
+            spec.eachFile(new MultiReleaseFilter(parent.getOutput(), version));
+        });
+
+        // JVMs prefer every versioned directory up to their own version over the root, so the default version's copy
+        // of anything a lower version overrides must also be versioned
+        if(version < defaultVersion) {
+            DefaultVersionFilter filter = defaultVersionFilters.get(task);
+            if(filter == null) {
+                DefaultVersionFilter created = new DefaultVersionFilter();
+                task.into("META-INF/versions/" + defaultVersion, spec -> {
+                    spec.from(parent.getOutput());
+                    spec.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
+                    spec.eachFile(created);
+                });
+                defaultVersionFilters.put(task, created);
+                filter = created;
+            }
+            filter.addLowerVersion(version, project.files(contents));
+        }
+    }
+
+
+    private void setupMultiReleaseVersion(SourceSet parent, int version) {
+
+        multiReleaseVersions.add(version);
+
+        // The default jar can now be consumed by the lowest multi-release version
+        JavaPluginExtension javaExtension = project.getExtensions().getByType(JavaPluginExtension.class);
+        Provider<Integer> target = project.provider(() -> Math.min(
+                multiReleaseVersions.first(),
+                Integer.parseInt(javaExtension.getTargetCompatibility().getMajorVersion())));
+
+        for(String name : new String[] { parent.getApiElementsConfigurationName(), parent.getRuntimeElementsConfigurationName() }) {
+            project.getConfigurations().named(name, conf -> conf.getAttributes().attributeProvider(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE, target));
+        }
+    }
+
+
+    private void addJarComparison(SourceSet parent, int version, TaskProvider<Jar> jarTask) {
+
+        if(!parent.getName().equals(SourceSet.MAIN_SOURCE_SET_NAME)) return;
+
+        TaskContainer tasks = project.getTasks();
+        if(!tasks.getNames().contains(COMPARE_JARS_TASK_NAME)) {
+            tasks.register(COMPARE_JARS_TASK_NAME, CompareVersionJars.class, task -> {
+                task.setGroup("build");
+                task.setDescription("Compares the contents of each versioned jar with the default jar.");
+                task.getDefaultJar().set(tasks.named(parent.getJarTaskName(), Jar.class).flatMap(Jar::getArchiveFile));
+                task.getReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/jarComparison.json"));
+                if(deltaJars) {
+                    task.getDeltaDirectory().convention(project.getLayout().getBuildDirectory().dir("libs/delta"));
+                }
+            });
+        }
+
+        tasks.named(COMPARE_JARS_TASK_NAME, CompareVersionJars.class, task -> task.versionedJar(version, jarTask.flatMap(Jar::getArchiveFile)));
+    }
+
+
+    private void addLauncherPayload(SourceSet parent, int version, TaskProvider<Jar> jarTask) {
+
+        if(!launcherJar || !parent.getName().equals(SourceSet.MAIN_SOURCE_SET_NAME)) return;
+
+        TaskContainer tasks = project.getTasks();
+        if(!tasks.getNames().contains(LAUNCHER_JAR_TASK_NAME)) {
+            TaskProvider<Jar> launcher = tasks.register(LAUNCHER_JAR_TASK_NAME, Jar.class, task -> {
+                task.setGroup("build");
+                task.setDescription("Assembles a jar which runs the versioned jar best matching the Java version it is started with.");
+                task.getArchiveClassifier().set("launcher");
+                task.from(getLauncherClasses());
+                task.getManifest().getAttributes().put("Main-Class", Launcher.class.getName());
+
+                // Versioned jars are already compressed, so they are stored to avoid inflating them again at startup
+                task.setEntryCompression(ZipEntryCompression.STORED);
+            });
+            project.getPluginManager().withPlugin("application", plugin -> tasks.named(LAUNCHER_JAR_TASK_NAME, Jar.class, task -> {
+                JavaApplication application = project.getExtensions().getByType(JavaApplication.class);
+                task.getManifest().getAttributes().put(Launcher.MAIN_CLASS_ATTRIBUTE, application.getMainClass());
+            }));
+            tasks.named("assemble", task -> task.dependsOn(launcher));
+        }
+
+        tasks.named(LAUNCHER_JAR_TASK_NAME, Jar.class, task -> {
+
+            // The default multi-release jar also runs on its versioned directories, so it is selected from the lowest
+            int payloadVersion = version == defaultVersion && !multiReleaseVersions.isEmpty() ? Math.min(version, multiReleaseVersions.first()) : version;
+            task.from(jarTask, spec -> {
+                spec.into(Launcher.PAYLOAD_DIRECTORY);
+                spec.rename(".*", Launcher.getPayloadName(payloadVersion).substring(Launcher.PAYLOAD_DIRECTORY.length()));
+            });
+        });
+    }
+
+
+    private void addCdsArchive(SourceSet parent, int version, TaskProvider<Jar> jarTask, FileCollection runtimeClasspath, Provider<JavaLauncher> launcher) {
+
+        if(!cdsArchives || version < CdsArchive.MIN_VERSION || !parent.getName().equals(SourceSet.MAIN_SOURCE_SET_NAME)) return;
+
+        TaskContainer tasks = project.getTasks();
+        String name = getSourceSetName(version);
+
+        TaskProvider<CdsArchive> archiveTask = tasks.register(name + "CdsArchive", CdsArchive.class, task -> {
+            task.setGroup("build");
+            task.setDescription("Dumps a class data sharing archive for the Java " + version + " jar.");
+            task.getJavaLauncher().convention(launcher);
+            configureRuntime(task, version);
+            task.getClasspath().from(jarTask.flatMap(Jar::getArchiveFile), runtimeClasspath);
+            recordMetrics(task, version, null);
+            task.getArchive().convention(project.getLayout().getBuildDirectory().file("libs/cds/" + name + ".jsa"));
+
+            if(cdsTrainingMainClass != null) {
+                task.getMainClass().convention(cdsTrainingMainClass);
+            } else {
+                project.getPluginManager().withPlugin("application", plugin ->
+                        task.getMainClass().convention(project.getExtensions().getByType(JavaApplication.class).getMainClass()));
+            }
+        });
+
+        // Variant Artifacts
+        Configuration cdsElements = project.getConfigurations().create(configurationNameOf(CDS_ARCHIVE_ELEMENTS_CONFIGURATION_NAME, version), conf -> {
+            conf.setCanBeResolved(false);
+            conf.setCanBeConsumed(true);
+            conf.attributes(attr -> {
+                attr.attribute(Category.CATEGORY_ATTRIBUTE, project.getObjects().named(Category.class, CDS_ARCHIVE_CATEGORY));
+                attr.attribute(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE, version);
+            });
+            conf.getOutgoing().artifact(archiveTask.flatMap(CdsArchive::getArchive), artifact -> {
+                artifact.setClassifier(name);
+                artifact.setExtension("jsa");
+                artifact.setType("jsa");
+            });
+        });
+
+        AdhocComponentWithVariants javaComponent = (AdhocComponentWithVariants) project.getComponents().getByName("java");
+        javaComponent.addVariantsFromConfiguration(cdsElements, ConfigurationVariantDetails::mapToOptional);
+
+        // Startup Benchmark
+        if(!tasks.getNames().contains(CDS_STARTUP_TASK_NAME)) {
+            tasks.register(CDS_STARTUP_TASK_NAME, CdsStartupBenchmark.class, task -> {
+                task.setGroup(BENCHMARK_GROUP);
+                task.setDescription("Measures the startup time of each version with and without its class data sharing archive.");
+                task.getIterations().convention(5);
+                task.getReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/cdsStartup.txt"));
+            });
+        }
+        tasks.named(CDS_STARTUP_TASK_NAME, CdsStartupBenchmark.class, task -> task.startup(version, archiveTask));
+    }
+
+
+    private FileTree getLauncherClasses() {
+
+        // The launcher classes are copied from wherever this plugin was loaded from
+        File location;
+        try {
+            location = new File(Launcher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException("Unable to locate the launcher classes!", ex);
+        }
+
+        String packagePath = Launcher.class.getPackage().getName().replace('.', '/');
+        FileTree tree = location.isDirectory() ? project.fileTree(location) : project.zipTree(location);
+        return tree.matching(pattern -> pattern.include(packagePath + "/**"));
+    }
+
+
+    private void configureTestMatrix(TaskProvider<Test> testTask, int version) {
+
+        if(!testMatrix) return;
+
+        TaskContainer tasks = project.getTasks();
+        Provider<RegularFile> durations = project.getLayout().getBuildDirectory().file("multiVersion/testDurations.txt");
+
+        if(!tasks.getNames().contains(TEST_MATRIX_TASK_NAME)) {
+            TaskProvider<TestMatrixReport> report = tasks.register(TEST_MATRIX_REPORT_TASK_NAME, TestMatrixReport.class, task -> {
+                task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+                task.setDescription("Combines the results of each versioned test task into one report.");
+                task.getReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/testMatrix.json"));
+                task.getHtmlReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/testMatrix.html"));
+                task.getDurations().convention(durations);
+            });
+            tasks.register(TEST_MATRIX_TASK_NAME, task -> {
+                task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+                task.setDescription("Runs the tests for every version and combines their results into one report.");
+                task.finalizedBy(report);
+            });
+        }
+
+        int shards = versionTestShards.getOrDefault(version, testShards);
+        List<TaskProvider<Test>> shardTasks = new ArrayList<>();
+        shardTasks.add(testTask);
+
+        if(shards > 1) {
+            testTask.configure(task -> task.include(new TestShardSpec(task.getTestClassesDirs(), durations, version, 0, shards)));
+        }
+        for(int i = 1 ; i < shards ; i++) {
+            int shard = i;
+            shardTasks.add(tasks.register(testTask.getName() + "Shard" + (shard + 1), Test.class, task -> {
+
+                // Shards run the same tests on the same toolchain as the versioned test task
+                Test parent = testTask.get();
+                task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+                task.setDescription("Runs shard " + (shard + 1) + " of " + shards + " of the Java " + version + " tests.");
+                task.getJavaLauncher().convention(parent.getJavaLauncher());
+                task.setTestClassesDirs(parent.getTestClassesDirs());
+                task.setClasspath(parent.getClasspath());
+                parent.copyTo(task);
+                recordMetrics(task, version, null);
+
+                // The parent's JVM arguments, including its runtime profile, were copied above
+                task.setForkEvery(parent.getForkEvery());
+                if(runtimeProfiles.containsKey(version)) task.dependsOn(tasks.named(getProfileValidationTaskName(version)));
+
+                // Each shard writes its own flight recording
+                if(flightRecordings) {
+                    List<String> jvmArgs = new ArrayList<>(task.getJvmArgs());
+                    jvmArgs.removeIf(arg -> arg.startsWith(FlightRecordingArguments.OPTION));
+                    task.setJvmArgs(jvmArgs);
+                    addFlightRecording(task, version);
+                }
+                task.include(new TestShardSpec(task.getTestClassesDirs(), durations, version, shard, shards));
+                addTestSelection(task, version);
+            }));
+        }
+
+        for(TaskProvider<Test> shardTask : shardTasks) {
+            shardTask.configure(task -> task.finalizedBy(tasks.named(TEST_MATRIX_REPORT_TASK_NAME)));
+            tasks.named(TEST_MATRIX_TASK_NAME, task -> task.dependsOn(shardTask));
+            tasks.named("check", task -> task.dependsOn(shardTask));
+            tasks.named(TEST_MATRIX_REPORT_TASK_NAME, TestMatrixReport.class, task -> {
+                task.mustRunAfter(shardTask);
+                task.results(version, shardTask.flatMap(test -> test.getReports().getJunitXml().getOutputLocation().getLocationOnly()));
+            });
+        }
+    }
+
+
+    private void configureTestSelection(TaskProvider<Test> testTask, int version, SourceDirectorySet mainOverrides, SourceDirectorySet testOverrides) {
+
+        if(!selectImpactedTests) return;
+
+        testSelectionOverrides.put(version, Arrays.asList(getOverrideIndex(mainOverrides), getOverrideIndex(testOverrides)));
+        project.getTasks().register(getTestGraphTaskName(version), TestDependencyGraph.class, task -> {
+            Test test = testTask.get();
+            task.setDescription("Records which classes each Java " + version + " test class depends on.");
+            task.getTestClasses().from(test.getTestClassesDirs());
+            task.getClasspath().from(test.getClasspath());
+            task.getGraph().convention(project.getLayout().getBuildDirectory().file("multiVersion/" + getSourceSetName(version) + "TestGraph.txt"));
+            recordMetrics(task, version, null);
+        });
+
+        testTask.configure(task -> addTestSelection(task, version));
+    }
+
+
+    private void addTestSelection(Test task, int version) {
+
+        List<OverrideIndex> overrides = testSelectionOverrides.get(version);
+        if(overrides == null) return;
+
+        TaskProvider<TestDependencyGraph> graph = project.getTasks().named(getTestGraphTaskName(version), TestDependencyGraph.class);
+        TestSelection selection = new TestSelection(task.getPath(), graph.flatMap(TestDependencyGraph::getGraph),
+                project.getLayout().getBuildDirectory().file("multiVersion/testSelection/" + task.getName() + ".txt"),
+                overrides, allTests, fullTestRunInterval);
+
+        task.dependsOn(graph);
+
+        // The selection is applied as a test filter when the task runs, rather than by excluding class files, so the
+        // task's candidate class files do not change between runs and cannot be emptied
+        task.doFirst(new ApplyTestSelection(selection));
+        task.doLast(new RecordTestSelection(selection));
+
+        // Requesting all tests reruns a test task even if it is up to date after a selective run
+        task.getInputs().property(ALL_TESTS_PROPERTY, allTests).optional(true);
+    }
+
+
+    private static String getTestGraphTaskName(int version) {
+        return getSourceSetName(version) + "TestGraph";
+    }
+
+
+    private void configureParallelCompilation(JavaCompile task, Provider<JavaLauncher> launcher) {
+
+        if(!parallelCompilation) return;
+
+        Provider<CompilationLimit> limit = project.getGradle().getSharedServices().registerIfAbsent("multiVersionCompilation" + project.getPath(), CompilationLimit.class, spec -> {
+            if(maxParallelCompilations > 0) spec.getMaxParallelUsages().set(maxParallelCompilations);
+        });
+        task.usesService(limit);
+
+        // Only the task's own compile action is replaced, so actions added by builds or other plugins still run
+        List<Action<? super Task>> actions = task.getActions();
+        for(int i = 0 ; i < actions.size() ; i++) {
+            Action<? super Task> action = actions.get(i);
+            if(action instanceof Describable && ((Describable) action).getDisplayName().equals(COMPILE_ACTION_NAME)) {
+                actions.set(i, new ParallelCompileAction(getWorkerExecutor(), launcher));
+                return;
+            }
+        }
+        throw new IllegalStateException("Unable to find the compile action of " + task.getPath() + " to replace with parallel compilation!");
+    }
+
+
+    private Provider<RegularFile> getCompressedResources(SourceSet parent) {
+
+        if(!compressResourcesOnce) return null;
+
+        TaskContainer tasks = project.getTasks();
+        String taskName = parent.getTaskName("compress", "resources");
+        if(!tasks.getNames().contains(taskName)) {
+            tasks.register(taskName, CompressResources.class, task -> {
+                task.setDescription("Compresses the " + parent.getName() + " resources once for every versioned jar.");
+                task.getResources().from(tasks.named(parent.getProcessResourcesTaskName()));
+                task.getArchive().convention(project.getLayout().getBuildDirectory().file("multiVersion/" + parent.getName() + "Resources.zip"));
+            });
+        }
+        return tasks.named(taskName, CompressResources.class).flatMap(CompressResources::getArchive);
+    }
+
+
+    private void addResources(Jar task, SourceSet parent, Provider<RegularFile> compressedResources) {
+
+        if(compressedResources == null) {
+            task.from(parent.getOutput().getResourcesDir());
+            return;
+        }
+        task.getInputs().file(compressedResources).withPropertyName("compressedResources").withPathSensitivity(PathSensitivity.NONE);
+        task.doLast(new AppendCompressedEntries(compressedResources));
+    }
+
+
+    private Provider<JavaCompiler> getCompiler(JavaLanguageVersion version) {
+
+        return compilers.computeIfAbsent(version, v -> {
+            Provider<JavaCompiler> compiler = createCompiler(v);
+            prepareToolchain(v, compiler, getLauncher(v));
+            return compiler;
+        });
+    }
+
+
+    private Provider<JavaLauncher> getLauncher(JavaLanguageVersion version) {
+
+        return launchers.computeIfAbsent(version, this::createLauncher);
+    }
+
+
+    private Provider<JavaCompiler> createCompiler(JavaLanguageVersion version) {
+
+        Property<JavaCompiler> compiler = project.getObjects().property(JavaCompiler.class);
+        compiler.value(toolchainService.compilerFor(spec -> spec.getLanguageVersion().convention(version))).finalizeValueOnRead();
+        return compiler;
+    }
+
+
+    private Provider<JavaLauncher> createLauncher(JavaLanguageVersion version) {
+
+        Property<JavaLauncher> launcher = project.getObjects().property(JavaLauncher.class);
+        launcher.value(toolchainService.launcherFor(spec -> spec.getLanguageVersion().convention(version))).finalizeValueOnRead();
+        return launcher;
+    }
+
+
+    private void prepareToolchain(JavaLanguageVersion version, Provider<JavaCompiler> compiler, Provider<JavaLauncher> launcher) {
+
+        TaskContainer tasks = project.getTasks();
+        if(!tasks.getNames().contains(PREPARE_TOOLCHAINS_TASK_NAME)) {
+            tasks.register(PREPARE_TOOLCHAINS_TASK_NAME, PrepareToolchains.class, task -> {
+                task.setGroup("build setup");
+                task.setDescription("Probes or provisions the toolchain of every version, then starts each one.");
+            });
         }
+        tasks.named(PREPARE_TOOLCHAINS_TASK_NAME, PrepareToolchains.class, task -> task.toolchain(version.asInt(), compiler, launcher));
+    }
+
+
+    private void recordMetrics(Task task, int version, FileCollection overrides) {
+
+        if(buildMetrics == null) return;
+
+        // Only the version and kind are known for tasks which turn out to be up-to-date or loaded from the build cache
+        BuildMetrics.Params parameters = (BuildMetrics.Params) project.getGradle().getSharedServices().getRegistrations().getByName(BUILD_METRICS_SERVICE_NAME).getParameters();
+        parameters.getVersions().put(task.getPath(), version);
+        parameters.getKinds().put(task.getPath(), RecordMetrics.getKind(task));
+
+        task.usesService(buildMetrics);
+        task.doFirst(new RecordMetrics(buildMetrics, overrides));
     }
 
 
@@ -576,19 +1546,18 @@ public class MultiVersionExtension {
     }
 
 
-    private FileCollection getRuntimeClasspath(JavaExec task, Jar jarTask, FileCollection runtimeClasspath) {
+    private FileCollection getRuntimeClasspath(JavaExec task, TaskProvider<Jar> jarTask, FileCollection runtimeClasspath) {
         return project.files().from(
                 (task.getMainModule().isPresent() ?
-                        jarTask.getOutputs().getFiles().plus(runtimeClasspath) :
+                        project.files(jarTask.flatMap(Jar::getArchiveFile)).plus(runtimeClasspath) :
                         runtimeClasspath)
         );
     }
 
 
-    private void setupElementsConfig(Configuration element, String usage, Configuration implementation, Jar jar, int version) {
+    private void setupElementsConfig(Configuration element, String usage, Configuration implementation, TaskProvider<Jar> jar, int version) {
 
         ConfigurationContainer configurations = project.getConfigurations();
-        TaskContainer tasks = project.getTasks();
 
         element.setCanBeResolved(false);
         element.setCanBeConsumed(true);
@@ -601,15 +1570,42 @@ public class MultiVersionExtension {
         });
 
         element.extendsFrom(configurations.getByName(implementation.getName()));
-        element.outgoing(pub -> pub.artifact(tasks.named(jar.getName())));
+        element.outgoing(pub -> pub.artifact(jar));
     }
 
 
+    private static final String COMPARE_JARS_TASK_NAME = "compareVersionJars";
+    static final String REQUESTED_VERSIONS_PROPERTY = "multiVersion.versions";
+    private static final String ALL_TESTS_PROPERTY = "multiVersion.allTests";
+    private static final String TEST_MATRIX_TASK_NAME = "testMatrix";
+    private static final String LAUNCHER_JAR_TASK_NAME = "launcherJar";
+    private static final String CDS_STARTUP_TASK_NAME = "cdsStartupBenchmark";
+    private static final String CDS_ARCHIVE_ELEMENTS_CONFIGURATION_NAME = "cdsArchiveElements";
+    private static final String BUILD_METRICS_SERVICE_NAME = "multiVersionMetrics";
+    private static final String PREPARE_TOOLCHAINS_TASK_NAME = "prepareToolchains";
+    private static final String COMPILE_ACTION_NAME = "Execute compile";
+    private static final String FLIGHT_RECORDING_SUMMARY_TASK_NAME = "flightRecordingSummary";
+    private static final String CDS_ARCHIVE_CATEGORY = "cds-archive";
+    private static final String BENCHMARK_SOURCE_SET_NAME = "jmh";
+    private static final String BENCHMARK_GROUP = "benchmark";
+    private static final String BENCHMARKS_TASK_NAME = "benchmarks";
+    private static final String COMPARE_BENCHMARKS_TASK_NAME = "compareBenchmarks";
+    private static final String TEST_MATRIX_REPORT_TASK_NAME = "testMatrixReport";
+    private static final String FLIGHT_RECORDING_SERVICE_NAME = "multiVersionFlightRecordings";
+    private static final Spec<Task> CACHE_ALWAYS = new CacheAlways();
+    private static final Spec<Task> NEVER_UP_TO_DATE = new NeverUpToDate();
+
+
     private static String getCompileTaskName(int version, SourceSet base) {
         return base.getCompileTaskName("java") + version + "Java";
     }
 
 
+    private static String getSharedCompileTaskName(SourceSet base) {
+        return base.getCompileTaskName("shared") + "Java";
+    }
+
+
     private static String getSourceSetName(int version) {
         return "java" + version;
     }
@@ -662,6 +1658,13 @@ public class MultiVersionExtension {
     }
 
 
+    private FileCollection getVersionedClasspath(Configuration versioned, String baseName, int version) {
+
+        if(resolutionSharing == null) return versioned;
+        return resolutionSharing.share(versioned, project.getConfigurations().getByName(baseName), version, project.getLogger());
+    }
+
+
     private void setupConfiguration(Configuration config, Configuration base, boolean extend, int version) {
 
         if(extend) {
@@ -671,29 +1674,234 @@ public class MultiVersionExtension {
     }
 
 
-    private FileCollection filterSources(FileCollection sources, SourceDirectorySet sourceDirectories, SourceDirectorySet overrides) {
+    private FileTree filterSources(FileTree sources, SourceDirectorySet overrides) {
 
-        return sources.filter(file -> {
+        OverrideIndex index = getOverrideIndex(overrides);
+        return sources.matching(pattern -> pattern.exclude(index));
+    }
 
-            for (File overrideDir : overrides.getSourceDirectories()) {
-                for (File sourceDir : sourceDirectories.getSourceDirectories()) {
 
-                    String overridePath = overrideDir.getAbsolutePath();
-                    String sourcePath = sourceDir.getAbsolutePath();
+    private FileTree getVersionedSources(SourceSet parent, SourceDirectorySet overrides) {
 
-                    if(!file.getAbsolutePath().startsWith(sourcePath)) continue;
+        FileTree sources = filterSources(parent.getJava().getSourceDirectories().getAsFileTree(), overrides);
 
-                    String suffix = file.getAbsolutePath().substring(sourcePath.length());
-                    File existing = new File(overridePath + suffix);
+        SharedClasses shared = sharedClasses.get(parent);
+        if(shared == null || !shared.hasOverrides(getOverrideIndex(overrides))) {
+            return sources;
+        }
+        return sources.matching(pattern -> pattern.include(shared.versionedSources()));
+    }
 
-                    if (overrides.contains(existing)) {
-                        return false;
-                    }
-                }
-            }
 
-            return true;
+    private OverrideIndex getOverrideIndex(SourceDirectorySet overrides) {
+        return overrideIndices.computeIfAbsent(overrides, OverrideIndex::new);
+    }
+
+
+    private void shareOverrides(SourceSet parent, SourceDirectorySet overrides) {
+
+        if(!shareCompiledClasses || !parent.getName().equals(SourceSet.MAIN_SOURCE_SET_NAME)) return;
+        getSharedClasses(parent).addOverrides(getOverrideIndex(overrides));
+    }
+
+
+    private boolean isSharingClasses(SourceSet parent) {
+        return sharedClasses.containsKey(parent);
+    }
+
+
+    private FileCollection getSharedOutput(SourceSet parent) {
+
+        if(!isSharingClasses(parent)) return project.files();
+        return project.files(project.getTasks().named(getSharedCompileTaskName(parent), JavaCompile.class).flatMap(JavaCompile::getDestinationDirectory));
+    }
+
+
+    private void addRuntimeProfileValidation(int version) {
+
+        RuntimeProfile profile = runtimeProfiles.get(version);
+        if(profile == null) return;
+
+        ProfileArguments arguments = new ProfileArguments(profile);
+        project.getTasks().register(getProfileValidationTaskName(version), ValidateRuntimeProfile.class, task -> {
+            task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+            task.setDescription("Checks that Java " + version + " supports the arguments of its runtime profile.");
+            task.getJavaLauncher().convention(getLauncher(JavaLanguageVersion.of(version)));
+            task.getJvmArgs().addAll(project.provider(arguments::getArguments));
+            task.getOutputFile().convention(project.getLayout().getBuildDirectory().file("multiVersion/" + getSourceSetName(version) + "Profile.txt"));
+        });
+    }
+
+
+    private static String getProfileValidationTaskName(int version) {
+        return getSourceSetName(version) + "ValidateProfile";
+    }
+
+
+    private void configureRuntime(Task task, int version) {
+        applyRuntimeProfile(task, version);
+        addFlightRecording(task, version);
+    }
+
+
+    private void addFlightRecordingSummary(int version) {
+
+        if(!flightRecordings) return;
+
+        TaskContainer tasks = project.getTasks();
+        if(!tasks.getNames().contains(FLIGHT_RECORDING_SUMMARY_TASK_NAME)) {
+            tasks.register(FLIGHT_RECORDING_SUMMARY_TASK_NAME, FlightRecordingSummary.class, task -> {
+                task.setGroup(LifecycleBasePlugin.VERIFICATION_GROUP);
+                task.setDescription("Summarizes the flight recordings of each version side by side.");
+                task.getTopCount().convention(10);
+                task.getReport().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/flightRecordings.json"));
+                task.getTable().convention(project.getLayout().getBuildDirectory().file("reports/multiVersion/flightRecordings.txt"));
+            });
+        }
+        Provider<JavaLauncher> launcher = getLauncher(JavaLanguageVersion.of(version));
+        Provider<FlightRecordingService> service = getFlightRecordingService();
+        tasks.named(FLIGHT_RECORDING_SUMMARY_TASK_NAME, FlightRecordingSummary.class, task -> {
+            task.usesService(service);
+            task.getService().set(service);
+            task.recordings(version, launcher, project.getLayout().getBuildDirectory().dir("jfr/" + getSourceSetName(version)));
         });
     }
 
+
+    private void addFlightRecording(Task task, int version) {
+
+        if(!flightRecordings || !(task instanceof Test || task instanceof JavaExec)) return;
+
+        // Each forked JVM writes its own recording to the task's directory
+        Provider<Directory> recordings = project.getLayout().getBuildDirectory().dir("jfr/" + getSourceSetName(version) + "/" + task.getName());
+        ((JavaForkOptions) task).getJvmArgumentProviders().add(new FlightRecordingArguments(version, getLauncher(JavaLanguageVersion.of(version)), recordings));
+        task.getOutputs().dir(recordings).withPropertyName("flightRecordings");
+
+        // Run and benchmark tasks have no other outputs, and must not become up-to-date because of their recordings
+        if(task instanceof JavaExec) task.getOutputs().upToDateWhen(NEVER_UP_TO_DATE);
+
+        Provider<FlightRecordingService> service = getFlightRecordingService();
+        task.usesService(service);
+        task.doFirst(new ClearFlightRecordings(service, recordings));
+        task.finalizedBy(project.getTasks().named(FLIGHT_RECORDING_SUMMARY_TASK_NAME));
+    }
+
+
+    private Provider<FlightRecordingService> getFlightRecordingService() {
+        return project.getGradle().getSharedServices().registerIfAbsent(FLIGHT_RECORDING_SERVICE_NAME, FlightRecordingService.class, spec -> { });
+    }
+
+
+    private void applyRuntimeProfile(Task task, int version) {
+
+        RuntimeProfile profile = runtimeProfiles.get(version);
+        if(profile == null) return;
+
+        ProfileArguments arguments = new ProfileArguments(profile);
+        task.dependsOn(project.getTasks().named(getProfileValidationTaskName(version)));
+        if(task instanceof JavaForkOptions) {
+            ((JavaForkOptions) task).getJvmArgumentProviders().add(arguments);
+        }
+        if(task instanceof Test && profile.getForkEvery().isPresent()) {
+            ((Test) task).setForkEvery(profile.getForkEvery().get());
+        }
+        if(task instanceof CdsArchive) {
+            ((CdsArchive) task).getJvmArgs().addAll(project.provider(arguments::getArguments));
+        }
+    }
+
+
+    private FileCollection getDowngradedOutput(SourceSet parent, SourceSet java, int version) {
+
+        TaskContainer tasks = project.getTasks();
+        String compileTaskName = parent.getTaskName("compile", "JavaForDowngrade");
+        if(!tasks.getNames().contains(compileTaskName)) {
+            tasks.register(compileTaskName, JavaCompile.class, task -> {
+
+                // Compile for the highest version, which can use every API the other versions can
+                int highest = Math.max(defaultVersion, declaredVersions.last());
+                ConfigurationContainer configurations = project.getConfigurations();
+
+                task.setDescription("Compiles main classes once for every additional version to downgrade.");
+                task.setSource(parent.getJava());
+                task.getJavaCompiler().convention(getCompiler(JavaLanguageVersion.of(highest)));
+                task.setClasspath(getVersionedClasspath(configurations.getByName(configurationNameOf(parent.getCompileClasspathConfigurationName(), highest)),
+                        parent.getCompileClasspathConfigurationName(), highest));
+                task.getOptions().setAnnotationProcessorPath(configurations.getByName(configurationNameOf(parent.getAnnotationProcessorConfigurationName(), highest)));
+
+                // String concatenation through invokedynamic only exists on Java 9+
+                task.getOptions().getCompilerArgs().add("-XDstringConcat=inline");
+
+                task.getDestinationDirectory().convention(project.getLayout().getBuildDirectory().dir("classes/downgrade/" + parent.getName()));
+                configureParallelCompilation(task, getLauncher(JavaLanguageVersion.of(highest)));
+                recordMetrics(task, highest, null);
+            });
+        }
+
+        TaskProvider<DowngradeClasses> downgradeTask = tasks.register(parent.getTaskName("downgrade", java.getName()), DowngradeClasses.class, task -> {
+            task.setDescription("Downgrades main classes to Java " + version + ".");
+            task.getClasses().from(tasks.named(compileTaskName, JavaCompile.class).flatMap(JavaCompile::getDestinationDirectory));
+            task.getClasspath().from(java.getCompileClasspath());
+            task.getOverrides().from(java.getJava());
+            task.getStubPackage().convention(downgradeStubPackage);
+            task.getJavaLauncher().convention(getLauncher(JavaLanguageVersion.of(version)));
+            task.getDestinationDirectory().convention(project.getLayout().getBuildDirectory().dir("classes/downgrade/" + java.getName() + "/" + parent.getName()));
+            recordMetrics(task, version, java.getJava());
+        });
+        tasks.named(java.getClassesTaskName(), task -> task.dependsOn(downgradeTask));
+
+        return project.files(downgradeTask.flatMap(DowngradeClasses::getDestinationDirectory));
+    }
+
+
+    private SharedClasses getSharedClasses(SourceSet parent) {
+
+        return sharedClasses.computeIfAbsent(parent, set -> {
+
+            String taskName = getSharedCompileTaskName(set);
+            SharedClasses shared = new SharedClasses(project.getObjects().fileProperty()
+                    .convention(project.getLayout().getBuildDirectory().file("tmp/" + taskName + "/dependents.txt")));
+
+            project.getTasks().register(taskName, JavaCompile.class, task -> {
+
+                // Compile for the lowest additional version, resolving overridden classes from that version
+                int version = declaredVersions.first();
+                SourceDirectorySet lowest = getSourceDirectorySet(version, set);
+                ConfigurationContainer configurations = project.getConfigurations();
+
+                task.setDescription("Compiles main classes which are shared between all additional versions.");
+                task.setSource(set.getJava().getSourceDirectories().getAsFileTree().matching(pattern -> pattern.include(shared.sharedSources())));
+                task.getJavaCompiler().convention(getCompiler(JavaLanguageVersion.of(version)));
+                task.setClasspath(getVersionedClasspath(configurations.getByName(configurationNameOf(set.getCompileClasspathConfigurationName(), version)),
+                        set.getCompileClasspathConfigurationName(), version));
+
+                task.getOptions().setSourcepath(project.files(lowest.getSourceDirectories(), set.getJava().getSourceDirectories()));
+                task.getOptions().getCompilerArgs().add("-implicit:none");
+                task.getOptions().setAnnotationProcessorPath(configurations.getByName(configurationNameOf(set.getAnnotationProcessorConfigurationName(), version)));
+
+                task.getDestinationDirectory().convention(project.getLayout().getBuildDirectory().dir("classes/shared/" + set.getName()));
+                task.getOutputs().file(shared.getDependentsFile()).withPropertyName("dependentsFile");
+                task.doLast(new SharedClasses.ScanDependents(shared, task.getDestinationDirectory()));
+                recordMetrics(task, version, lowest);
+            });
+
+            return shared;
+        });
+    }
+
+
+    private static class CacheAlways implements Spec<Task> {
+        @Override
+        public boolean isSatisfiedBy(Task task) {
+            return true;
+        }
+    }
+
+    private static class NeverUpToDate implements Spec<Task> {
+        @Override
+        public boolean isSatisfiedBy(Task task) {
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,75 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.provider.Provider;
+
+import javax.inject.Inject;
+import java.util.TreeSet;
+
+/**
+ * The settings script extension of {@link MultiVersionSettingsPlugin}. Versions declared here are set up in every
+ * project which applies {@link MultiVersionPlugin}, once that project has been evaluated.
+ */
+public class MultiVersionSettings {
+
+    private final Provider<String> requestedVersions;
+    private final TreeSet<Integer> additionalVersions = new TreeSet<>();
+
+    private int defaultVersion = 0;
+    private VersionModel model;
+
+    @Inject
+    public MultiVersionSettings(Provider<String> requestedVersions) {
+        this.requestedVersions = requestedVersions;
+    }
+
+    /**
+     * Sets the version which will be applied to the default compile and jar tasks of each project
+     * @param version The version to target
+     */
+    public void defaultVersion(int version) {
+
+        checkMutable();
+        if(defaultVersion != 0) {
+            throw new IllegalStateException("Cannot set default version more than once!");
+        }
+        defaultVersion = version;
+    }
+
+    /**
+     * Adds versions which each project will be compiled for, in addition to its default version
+     * @param versions The JVM versions to target
+     */
+    public void additionalVersions(int... versions) {
+
+        checkMutable();
+        for(int version : versions) {
+            additionalVersions.add(version);
+        }
+    }
+
+    /**
+     * Creates the shared model from the declared versions. Versions cannot be declared afterwards.
+     * @return The shared model
+     */
+    VersionModel getModel() {
+
+        if(model == null) {
+            TreeSet<Integer> requested = new TreeSet<>();
+            for(int version : additionalVersions) {
+                if(version != defaultVersion && VersionModel.isRequested(requestedVersions.getOrNull(), MultiVersionExtension.REQUESTED_VERSIONS_PROPERTY, version)) {
+                    requested.add(version);
+                }
+            }
+            model = new VersionModel(defaultVersion, requested);
+        }
+        return model;
+    }
+
+
+    private void checkMutable() {
+        if(model != null) {
+            throw new IllegalStateException("Versions must be declared in the settings script!");
+        }
+    }
+
+}
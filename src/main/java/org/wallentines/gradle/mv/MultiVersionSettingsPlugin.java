@@ -0,0 +1,23 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.initialization.Settings;
+
+/**
+ * Declares versions once for every project in a build. Projects opt in by applying {@link MultiVersionPlugin}, which
+ * then sets up the shared versions. Nothing is applied to other projects.
+ */
+public class MultiVersionSettingsPlugin implements Plugin<Settings> {
+
+    static final String MODEL_EXTENSION_NAME = "multiVersionModel";
+
+    @Override
+    public void apply(Settings target) {
+
+        MultiVersionSettings settings = target.getExtensions().create("multiVersion", MultiVersionSettings.class,
+                target.getProviders().gradleProperty(MultiVersionExtension.REQUESTED_VERSIONS_PROPERTY));
+
+        target.getGradle().settingsEvaluated(evaluated ->
+                evaluated.getGradle().getExtensions().add(VersionModel.class, MODEL_EXTENSION_NAME, settings.getModel()));
+    }
+}
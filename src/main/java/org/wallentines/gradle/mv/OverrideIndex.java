@@ -0,0 +1,63 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.SourceDirectorySet;
+import org.gradle.api.specs.Spec;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An index of the relative paths of every file in a version override source directory set. Used to exclude overridden
+ * files from the main sources without walking the override directories once per source file.
+ */
+class OverrideIndex implements Spec<FileTreeElement> {
+
+    private final FileCollection overrideDirectories;
+    private final FileTree overrideFiles;
+
+    private transient Set<File> indexedDirectories;
+    private transient Set<String> relativePaths;
+
+    OverrideIndex(SourceDirectorySet overrides) {
+        this.overrideDirectories = overrides.getSourceDirectories();
+        this.overrideFiles = overrides.getAsFileTree();
+    }
+
+    /**
+     * Determines whether the given file has an override with the same relative path
+     * @param element The file to check, relative to its source directory
+     * @return Whether the file is overridden
+     */
+    @Override
+    public boolean isSatisfiedBy(FileTreeElement element) {
+        return !element.isDirectory() && getRelativePaths().contains(element.getRelativePath().getPathString());
+    }
+
+    /**
+     * Gets the relative paths of all override files, re-indexing if the override directories have changed
+     * @return A set of relative paths
+     */
+    Set<String> getRelativePaths() {
+
+        Set<File> directories = overrideDirectories.getFiles();
+        if(relativePaths == null || !directories.equals(indexedDirectories)) {
+
+            Set<String> out = new HashSet<>();
+            overrideFiles.visit(details -> {
+                if(!details.isDirectory()) {
+                    out.add(details.getRelativePath().getPathString());
+                }
+            });
+
+            indexedDirectories = directories;
+            relativePaths = out;
+        }
+
+        return relativePaths;
+    }
+
+}
@@ -0,0 +1,330 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.compile.CompileOptions;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.workers.WorkerExecutor;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Replaces the compile action of a versioned compile task. Compilation is submitted to a worker daemon running on the
+ * version's toolchain, so the task does not block other versions' compile tasks in the same project. Within a build,
+ * each worker daemon is reused by every compile task with the same toolchain.
+ * <p>
+ * Compilation is incremental when only sources changed since the last compilation. Sources are compared by relative
+ * path, so an override being added or removed replaces a single compilation unit. The changed sources are recompiled
+ * along with every source which depends on them, either through a class reference or by naming one of their classes
+ * (which catches inlined constants). Any other change recompiles everything.
+ * <p>
+ * The options are passed to javac as Gradle passes them, including the source and target compatibility when no release
+ * is set. Modules are not supported, since Gradle infers their module path itself, so compiling a module-info.java with
+ * an inferred module path fails.
+ */
+class ParallelCompileAction implements Action<Task> {
+
+    private static final String STATE_FILE_NAME = "parallelCompile.state";
+    private static final String MODULE_INFO = "module-info.java";
+
+    private final WorkerExecutor workerExecutor;
+    private final Provider<JavaLauncher> launcher;
+
+    ParallelCompileAction(WorkerExecutor workerExecutor, Provider<JavaLauncher> launcher) {
+        this.workerExecutor = workerExecutor;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        JavaCompile compile = (JavaCompile) task;
+        String executable = launcher.get().getExecutablePath().getAsFile().getAbsolutePath();
+        File destination = compile.getDestinationDirectory().get().getAsFile();
+        File stateFile = new File(task.getTemporaryDir(), STATE_FILE_NAME);
+
+        Map<String, File> sources = new TreeMap<>();
+        compile.getSource().visit(details -> {
+            if(!details.isDirectory()) sources.put(details.getRelativePath().getPathString(), details.getFile());
+        });
+
+        // The module path is inferred by Gradle's own compiler integration, which this action does not use
+        if(sources.containsKey(MODULE_INFO) && compile.getModularity().getInferModulePath().get()) {
+            throw new GradleException(task.getPath() + " compiles a module, which is not supported by parallel compilation!");
+        }
+
+        List<String> options = getOptions(compile);
+        CompileState state;
+        try {
+            Map<String, String> hashes = new TreeMap<>();
+            for(Map.Entry<String, File> source : sources.entrySet()) {
+                hashes.put(source.getKey(), CompileState.hashFile(source.getValue()));
+            }
+            state = new CompileState(CompileState.fingerprintClasspath(options, compile.getClasspath()), null, hashes);
+        } catch (IOException ex) {
+            throw new GradleException("Unable to fingerprint the inputs of " + task.getPath() + "!", ex);
+        }
+
+        // The previous state is removed until this compilation succeeds
+        CompileState previous = CompileState.read(stateFile);
+        if(stateFile.exists() && !stateFile.delete()) {
+            throw new GradleException("Unable to delete compile state " + stateFile + "!");
+        }
+
+        Set<String> toCompile = getSourcesToCompile(compile, sources, previous, state, destination, task.getLogger());
+        boolean full = toCompile == null;
+        if(full) {
+            toCompile = sources.keySet();
+        } else if(toCompile.isEmpty()) {
+            try {
+                state.withOutputs(CompileState.fingerprint(Collections.emptyList(), Collections.singleton(destination))).write(stateFile);
+            } catch (IOException ex) {
+                throw new GradleException("Unable to write compile state to " + stateFile + "!", ex);
+            }
+            return;
+        }
+
+        List<String> args = new ArrayList<>(options);
+        args.add("-classpath");
+        args.add(full ? compile.getClasspath().getAsPath() : destination.getAbsolutePath() + File.pathSeparator + compile.getClasspath().getAsPath());
+        for(String path : toCompile) {
+            args.add(sources.get(path).getAbsolutePath());
+        }
+
+        String encodedState = state.encode();
+        workerExecutor.processIsolation(spec -> spec.forkOptions(fork -> {
+            fork.setExecutable(executable);
+            String maxHeap = compile.getOptions().getForkOptions().getMemoryMaximumSize();
+            if(maxHeap != null) fork.setMaxHeapSize(maxHeap);
+        })).submit(CompileWork.class, params -> {
+            params.getDestinationDirectory().set(compile.getDestinationDirectory());
+            params.getArguments().set(args);
+            params.getFullRecompilation().set(full);
+            params.getStateFile().set(stateFile);
+            params.getState().set(encodedState);
+        });
+    }
+
+
+    /**
+     * Finds the sources which need to be compiled, and deletes the classes compiled from them
+     * @return The relative paths of the sources to compile, or null if everything must be recompiled
+     */
+    private static Set<String> getSourcesToCompile(JavaCompile compile, Map<String, File> sources, CompileState previous, CompileState current, File destination, Logger logger) {
+
+        if(previous == null || !destination.isDirectory()) {
+            return null;
+        }
+        FileCollection processorPath = compile.getOptions().getAnnotationProcessorPath();
+        if(processorPath != null && !processorPath.isEmpty()) {
+            logger.info("Full recompilation is required because annotation processors are used.");
+            return null;
+        }
+        if(!previous.getOptions().equals(current.getOptions())) {
+            logger.info("Full recompilation is required because the compiler options or classpath changed.");
+            return null;
+        }
+
+        Map<String, List<Path>> classFiles = new HashMap<>();
+        Map<String, Set<String>> classNames = new HashMap<>();
+        Map<String, Set<String>> references = new HashMap<>();
+
+        try {
+            if(previous.getOutputs() == null || !previous.getOutputs().equals(CompileState.fingerprint(Collections.emptyList(), Collections.singleton(destination)))) {
+                logger.info("Full recompilation is required because the output directory changed.");
+                return null;
+            }
+
+            try(Stream<Path> files = Files.walk(destination.toPath())) {
+                Iterator<Path> it = files.filter(path -> path.toString().endsWith(".class")).iterator();
+                while(it.hasNext()) {
+                    Path path = it.next();
+                    ClassFileInfo info;
+                    try(InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                        info = ClassFileInfo.read(in);
+                    }
+
+                    String source = info.getSourcePath();
+                    if(source == null) {
+                        logger.info("Full recompilation is required because {} has no source file attribute.", path);
+                        return null;
+                    }
+                    classFiles.computeIfAbsent(source, key -> new ArrayList<>()).add(path);
+                    classNames.computeIfAbsent(source, key -> new HashSet<>()).add(info.getName());
+                    references.computeIfAbsent(source, key -> new HashSet<>()).addAll(info.getReferencedClasses());
+                }
+            }
+        } catch (IOException ex) {
+            logger.info("Full recompilation is required because the previous output could not be read.", ex);
+            return null;
+        }
+
+        Map<String, String> oldSources = previous.getSources();
+        Map<String, String> newSources = current.getSources();
+
+        Set<String> dirty = new TreeSet<>();
+        for(Map.Entry<String, String> source : newSources.entrySet()) {
+            if(!source.getValue().equals(oldSources.get(source.getKey()))) dirty.add(source.getKey());
+        }
+        Set<String> removed = new TreeSet<>(oldSources.keySet());
+        removed.removeAll(newSources.keySet());
+
+        // Every class which was or will be compiled from a changed source
+        Set<String> dirtyClasses = new HashSet<>();
+        for(String source : dirty) addClassNames(source, classNames, dirtyClasses);
+        for(String source : removed) addClassNames(source, classNames, dirtyClasses);
+
+        Map<String, String> sourceText = new HashMap<>();
+        boolean changed = !dirtyClasses.isEmpty();
+        while(changed) {
+            changed = false;
+            for(String source : newSources.keySet()) {
+                if(dirty.contains(source) || !dependsOn(source, references, dirtyClasses, sourceText, sources)) continue;
+
+                dirty.add(source);
+                addClassNames(source, classNames, dirtyClasses);
+                changed = true;
+            }
+        }
+
+        if(dirty.size() == newSources.size()) {
+            return null;
+        }
+
+        Set<String> stale = new HashSet<>(dirty);
+        stale.addAll(removed);
+        for(String source : stale) {
+            for(Path path : classFiles.getOrDefault(source, Collections.emptyList())) {
+                if(!path.toFile().delete()) {
+                    throw new GradleException("Unable to delete stale class " + path + "!");
+                }
+            }
+        }
+
+        logger.info("Incremental compilation of {} of {} sources ({} removed).", dirty.size(), newSources.size(), removed.size());
+        return dirty;
+    }
+
+    private static void addClassNames(String source, Map<String, Set<String>> classNames, Set<String> out) {
+
+        out.addAll(classNames.getOrDefault(source, Collections.emptySet()));
+
+        // Sources which did not compile to anything yet are assumed to declare a class matching their file name
+        if(source.endsWith(".java")) out.add(source.substring(0, source.length() - 5));
+    }
+
+    private static boolean dependsOn(String source, Map<String, Set<String>> references, Set<String> dirtyClasses, Map<String, String> sourceText, Map<String, File> sources) {
+
+        for(String ref : references.getOrDefault(source, Collections.emptySet())) {
+            if(dirtyClasses.contains(ref)) return true;
+        }
+
+        // Constants are inlined by javac, so the class which declares them does not appear in the class file
+        String text = sourceText.computeIfAbsent(source, path -> readSource(sources.get(path)));
+        for(String className : dirtyClasses) {
+            String simpleName = className.substring(Math.max(className.lastIndexOf('/'), className.lastIndexOf('$')) + 1);
+            if(containsWord(text, simpleName)) return true;
+        }
+        return false;
+    }
+
+    private static String readSource(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new GradleException("Unable to read source " + file + "!", ex);
+        }
+    }
+
+    private static boolean containsWord(String text, String word) {
+
+        if(word.isEmpty()) return false;
+        int index = text.indexOf(word);
+        while(index != -1) {
+            int end = index + word.length();
+            boolean startBoundary = index == 0 || !Character.isJavaIdentifierPart(text.charAt(index - 1));
+            boolean endBoundary = end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end));
+            if(startBoundary && endBoundary) return true;
+            index = text.indexOf(word, index + 1);
+        }
+        return false;
+    }
+
+
+    private static List<String> getOptions(JavaCompile compile) {
+
+        CompileOptions options = compile.getOptions();
+        List<String> out = new ArrayList<>();
+
+        out.add("-d");
+        out.add(compile.getDestinationDirectory().get().getAsFile().getAbsolutePath());
+
+        FileCollection sourcepath = options.getSourcepath();
+        out.add("-sourcepath");
+        out.add(sourcepath == null ? "" : sourcepath.getAsPath());
+
+        FileCollection processorPath = options.getAnnotationProcessorPath();
+        if(processorPath == null || processorPath.isEmpty()) {
+            out.add("-proc:none");
+        } else {
+            out.add("-processorpath");
+            out.add(processorPath.getAsPath());
+        }
+
+        if(options.getGeneratedSourceOutputDirectory().isPresent()) {
+            File generated = options.getGeneratedSourceOutputDirectory().get().getAsFile();
+            if(generated.isDirectory() || generated.mkdirs()) {
+                out.add("-s");
+                out.add(generated.getAbsolutePath());
+            }
+        }
+        if(options.getHeaderOutputDirectory().isPresent()) {
+            out.add("-h");
+            out.add(options.getHeaderOutputDirectory().get().getAsFile().getAbsolutePath());
+        }
+        if(options.getRelease().isPresent()) {
+            out.add("--release");
+            out.add(options.getRelease().get().toString());
+        } else {
+            if(compile.getSourceCompatibility() != null) {
+                out.add("-source");
+                out.add(compile.getSourceCompatibility());
+            }
+            if(compile.getTargetCompatibility() != null) {
+                out.add("-target");
+                out.add(compile.getTargetCompatibility());
+            }
+        }
+        if(options.getEncoding() != null) {
+            out.add("-encoding");
+            out.add(options.getEncoding());
+        }
+
+        if(!options.isDebug()) {
+            out.add("-g:none");
+        } else if(options.getDebugOptions().getDebugLevel() != null) {
+            out.add("-g:" + options.getDebugOptions().getDebugLevel());
+        } else {
+            out.add("-g");
+        }
+        if(!options.isWarnings()) out.add("-nowarn");
+        if(options.isDeprecation()) out.add("-deprecation");
+
+        out.addAll(options.getAllCompilerArgs());
+        return out;
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.UntrackedTask;
+import org.gradle.jvm.toolchain.JavaCompiler;
+import org.gradle.jvm.toolchain.JavaInstallationMetadata;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves the compiler and launcher of every version up front, so JDKs which have not been probed or provisioned yet
+ * are found before the first task which needs them. Gradle probes every installation it discovers on the first
+ * toolchain lookup, and provisions missing JDKs as they are looked up, so both happen here. Toolchains can only be
+ * looked up on the task's own thread, so the versions are resolved, and missing JDKs provisioned, one after another.
+ * Each launcher is then started once, at the same time, to make sure the installations actually run.
+ */
+@UntrackedTask(because = "Toolchains should be checked every time the task is run")
+public abstract class PrepareToolchains extends DefaultTask {
+
+    private final List<VersionedToolchain> toolchains = new ArrayList<>();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    /**
+     * Adds the toolchain of a version
+     * @param version The version
+     * @param compiler The version's compiler
+     * @param launcher The version's launcher
+     */
+    public void toolchain(int version, Provider<JavaCompiler> compiler, Provider<JavaLauncher> launcher) {
+        toolchains.add(new VersionedToolchain(version, compiler, launcher));
+    }
+
+    @TaskAction
+    public void prepare() {
+
+        // Toolchains can only be looked up on the task's own thread, so only the launchers are started in parallel
+        WorkQueue queue = getWorkerExecutor().noIsolation();
+        for(VersionedToolchain toolchain : toolchains) {
+
+            long start = System.nanoTime();
+            JavaInstallationMetadata metadata = toolchain.compiler.get().getMetadata();
+            JavaLauncher launcher = toolchain.launcher.get();
+            getLogger().lifecycle(String.format(Locale.ROOT, "Java %d: %s (%s) at %s, resolved in %.1f ms", toolchain.version,
+                    metadata.getJavaRuntimeVersion(), metadata.getVendor(), metadata.getInstallationPath().getAsFile(),
+                    (System.nanoTime() - start) / 1000000.0));
+
+            queue.submit(StartToolchain.class, params -> {
+                params.getVersion().set(toolchain.version);
+                params.getExecutable().set(launcher.getExecutablePath());
+            });
+        }
+    }
+
+
+    private static class VersionedToolchain {
+
+        private final int version;
+        private final Provider<JavaCompiler> compiler;
+        private final Provider<JavaLauncher> launcher;
+
+        VersionedToolchain(int version, Provider<JavaCompiler> compiler, Provider<JavaLauncher> launcher) {
+            this.version = version;
+            this.compiler = compiler;
+            this.launcher = launcher;
+        }
+    }
+
+}
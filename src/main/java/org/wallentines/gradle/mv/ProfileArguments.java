@@ -0,0 +1,34 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.tasks.Input;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes the JVM arguments and heap sizes of a version's {@link RuntimeProfile} to a forked JVM
+ */
+class ProfileArguments implements CommandLineArgumentProvider {
+
+    private final RuntimeProfile profile;
+
+    ProfileArguments(RuntimeProfile profile) {
+        this.profile = profile;
+    }
+
+    @Input
+    public List<String> getArguments() {
+
+        List<String> out = new ArrayList<>(profile.getJvmArgs().get());
+        if(profile.getMinHeap().isPresent()) out.add("-Xms" + profile.getMinHeap().get());
+        if(profile.getMaxHeap().isPresent()) out.add("-Xmx" + profile.getMaxHeap().get());
+        return out;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        return getArguments();
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.JavaExec;
+import org.gradle.api.tasks.SourceTask;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.api.tasks.testing.Test;
+import org.gradle.jvm.tasks.Jar;
+import org.gradle.jvm.toolchain.JavaCompiler;
+import org.gradle.jvm.toolchain.JavaInstallationMetadata;
+import org.gradle.jvm.toolchain.JavaLauncher;
+
+/**
+ * Describes a task to the {@link BuildMetrics} service when it starts running. The task's version and kind are
+ * registered with the service when the task is configured, so tasks which are up-to-date or loaded from the build cache
+ * are still reported, but their toolchain and file counts are only captured by this action, once the task runs and
+ * Gradle has already walked its inputs.
+ */
+class RecordMetrics implements Action<Task> {
+
+    static final String COMPILE = "compile";
+    static final String JAR = "jar";
+    static final String TEST = "test";
+    static final String RUN = "run";
+    static final String OTHER = "other";
+
+    private final Provider<BuildMetrics> service;
+    private final FileCollection overrides;
+
+    RecordMetrics(Provider<BuildMetrics> service, FileCollection overrides) {
+        this.service = service;
+        this.overrides = overrides;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        JavaInstallationMetadata toolchain = null;
+        if(task instanceof JavaCompile) {
+            toolchain = ((JavaCompile) task).getJavaCompiler().map(JavaCompiler::getMetadata).getOrNull();
+        } else if(task instanceof Test) {
+            toolchain = getMetadata(((Test) task).getJavaLauncher());
+        } else if(task instanceof JavaExec) {
+            toolchain = getMetadata(((JavaExec) task).getJavaLauncher());
+        } else if(task instanceof CdsArchive) {
+            toolchain = getMetadata(((CdsArchive) task).getJavaLauncher());
+        } else if(task instanceof DowngradeClasses) {
+            toolchain = getMetadata(((DowngradeClasses) task).getJavaLauncher());
+        }
+
+        service.get().record(task.getPath(),
+                toolchain == null ? null : toolchain.getJavaRuntimeVersion() + " (" + toolchain.getVendor() + ")",
+                task.getInputs().getFiles().getFiles().size(),
+                task instanceof SourceTask ? ((SourceTask) task).getSource().getFiles().size() : -1,
+                overrides == null ? -1 : overrides.getFiles().size());
+    }
+
+    /**
+     * Determines the kind of a task, which decides the column its duration is summarized in
+     * @param task The task
+     * @return The task's kind
+     */
+    static String getKind(Task task) {
+
+        if(task instanceof JavaCompile || task instanceof DowngradeClasses) return COMPILE;
+        if(task instanceof Jar) return JAR;
+        if(task instanceof Test) return TEST;
+        if(task instanceof JavaExec) return RUN;
+        return OTHER;
+    }
+
+
+    private static JavaInstallationMetadata getMetadata(Property<JavaLauncher> launcher) {
+        return launcher.map(JavaLauncher::getMetadata).getOrNull();
+    }
+
+}
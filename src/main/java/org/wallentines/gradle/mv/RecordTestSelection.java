@@ -0,0 +1,55 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.reporting.DirectoryReport;
+import org.gradle.api.tasks.testing.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Records the state of a versioned test task after it runs, unless any test failed. Tests which fail while failures
+ * are ignored are selected again by the next run, since the changes which affected them are not recorded.
+ */
+class RecordTestSelection implements Action<Task> {
+
+    private final TestSelection selection;
+
+    RecordTestSelection(TestSelection selection) {
+        this.selection = selection;
+    }
+
+    @Override
+    public void execute(Task task) {
+
+        DirectoryReport results = ((Test) task).getReports().getJunitXml();
+        if(results.getRequired().get() && hasFailures(results.getOutputLocation().get().getAsFile())) return;
+
+        selection.record();
+    }
+
+
+    private static boolean hasFailures(File results) {
+
+        if(!results.isDirectory()) return false;
+        try(Stream<Path> stream = Files.list(results.toPath())) {
+            List<Path> files = stream.filter(path -> path.toString().endsWith(".xml")).collect(Collectors.toList());
+            for(Path file : files) {
+                String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                if(text.contains("<failure") || text.contains("<error")) return true;
+            }
+        } catch (IOException ex) {
+            throw new GradleException("Unable to read test results from " + results + "!", ex);
+        }
+        return false;
+    }
+
+}
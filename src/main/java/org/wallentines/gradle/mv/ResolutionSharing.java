@@ -0,0 +1,188 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ExcludeRule;
+import org.gradle.api.artifacts.result.DependencyResult;
+import org.gradle.api.artifacts.result.ResolutionResult;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+import org.gradle.api.artifacts.result.ResolvedVariantResult;
+import org.gradle.api.artifacts.result.UnresolvedDependencyResult;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.attributes.AttributeContainer;
+import org.gradle.api.attributes.java.TargetJvmVersion;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.model.ObjectFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Shares the dependency resolution of a default classpath with the versioned classpaths which would resolve to the
+ * same graph. A versioned classpath which declares the same dependencies, constraints, excludes and attributes as its
+ * default classpath only differs by its target JVM version. Variants are selected by picking the highest compatible
+ * target JVM version, so a lower version selects the same variants as the default classpath as long as none of the
+ * variants the default classpath selected target a higher version. Every other versioned classpath is resolved on its
+ * own.
+ */
+class ResolutionSharing {
+
+    private final ObjectFactory objects;
+    private final List<SharedClasspath> classpaths = new ArrayList<>();
+
+    ResolutionSharing(ObjectFactory objects) {
+        this.objects = objects;
+    }
+
+    /**
+     * Creates a classpath which contains the files of the given base configuration if the versioned configuration
+     * would resolve to the same graph, or the files of the versioned configuration otherwise. The decision is made
+     * the first time the classpath is used.
+     * @param versioned The versioned classpath configuration
+     * @param base The default classpath configuration
+     * @param version The version the versioned configuration targets
+     * @param logger The logger to report the decision to
+     * @return A classpath
+     */
+    FileCollection share(Configuration versioned, Configuration base, int version, Logger logger) {
+
+        for(SharedClasspath classpath : classpaths) {
+            if(classpath.versioned == versioned) return classpath.files;
+        }
+
+        SharedClasspath out = new SharedClasspath(versioned, base, version, logger);
+        out.files = objects.fileCollection().from(out);
+        classpaths.add(out);
+        return out.files;
+    }
+
+    /**
+     * Reports how many of the versioned classpaths used in this build shared their resolution
+     * @param logger The logger to report to
+     * @param projectPath The path of the project the classpaths belong to
+     */
+    void report(Logger logger, String projectPath) {
+
+        int used = 0;
+        int shared = 0;
+        for(SharedClasspath classpath : classpaths) {
+            if(classpath.reason == null) continue;
+            used++;
+            if(classpath.shared) shared++;
+        }
+        if(used > 0) {
+            logger.lifecycle("Shared dependency resolution saved {} of {} versioned classpath resolutions in project '{}'.", shared, used, projectPath);
+        }
+    }
+
+
+    private static String getReasonToResolve(Configuration versioned, Configuration base, int version) {
+
+        Integer baseVersion = base.getAttributes().getAttribute(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE);
+        if(baseVersion == null) {
+            return base.getName() + " does not target a JVM version";
+        }
+        if(baseVersion < version) {
+            return base.getName() + " targets a lower JVM version";
+        }
+
+        AttributeContainer attributes = versioned.getAttributes();
+        AttributeContainer baseAttributes = base.getAttributes();
+        Set<Attribute<?>> keys = new HashSet<>(attributes.keySet());
+        keys.addAll(baseAttributes.keySet());
+        for(Attribute<?> key : keys) {
+            if(key.getName().equals(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE.getName())) continue;
+            if(!String.valueOf(attributes.getAttribute(key)).equals(String.valueOf(baseAttributes.getAttribute(key)))) {
+                return "the attribute " + key.getName() + " differs";
+            }
+        }
+
+        if(!new HashSet<>(versioned.getAllDependencies()).equals(new HashSet<>(base.getAllDependencies()))) {
+            return "it declares different dependencies";
+        }
+        if(!new HashSet<>(versioned.getAllDependencyConstraints()).equals(new HashSet<>(base.getAllDependencyConstraints()))) {
+            return "it declares different dependency constraints";
+        }
+        if(!getExcludeRules(versioned).equals(getExcludeRules(base))) {
+            return "it declares different excludes";
+        }
+
+        ResolutionResult result = base.getIncoming().getResolutionResult();
+        ResolvedComponentResult root = result.getRoot();
+        for(DependencyResult dependency : result.getAllDependencies()) {
+            if(dependency instanceof UnresolvedDependencyResult) {
+                return base.getName() + " has unresolved dependencies";
+            }
+        }
+        for(ResolvedComponentResult component : result.getAllComponents()) {
+            if(component.getId().equals(root.getId())) continue;
+            for(ResolvedVariantResult variant : component.getVariants()) {
+                Integer variantVersion = getTargetJvmVersion(variant.getAttributes());
+                if(variantVersion != null && variantVersion > version) {
+                    return "variant " + variant.getDisplayName() + " of " + component.getId().getDisplayName() + " targets Java " + variantVersion;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Set<ExcludeRule> getExcludeRules(Configuration configuration) {
+
+        Set<ExcludeRule> out = new HashSet<>();
+        for(Configuration config : configuration.getHierarchy()) {
+            out.addAll(config.getExcludeRules());
+        }
+        return out;
+    }
+
+    private static Integer getTargetJvmVersion(AttributeContainer attributes) {
+
+        // Attributes of resolved variants may be desugared to strings, so they are looked up by name
+        for(Attribute<?> key : attributes.keySet()) {
+            if(!key.getName().equals(TargetJvmVersion.TARGET_JVM_VERSION_ATTRIBUTE.getName())) continue;
+            try {
+                return Integer.parseInt(String.valueOf(attributes.getAttribute(key)));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    private static class SharedClasspath implements Callable<FileCollection> {
+
+        private final Configuration versioned;
+        private final Configuration base;
+        private final int version;
+        private final Logger logger;
+        private FileCollection files;
+
+        private boolean shared;
+        private String reason;
+
+        SharedClasspath(Configuration versioned, Configuration base, int version, Logger logger) {
+            this.versioned = versioned;
+            this.base = base;
+            this.version = version;
+            this.logger = logger;
+        }
+
+        @Override
+        public synchronized FileCollection call() {
+
+            if(reason == null) {
+                String resolveReason = getReasonToResolve(versioned, base, version);
+                shared = resolveReason == null;
+                reason = shared ? "it resolves to the same graph" : resolveReason;
+                logger.info("{} {} the resolution of {} because {}.", versioned.getName(), shared ? "shares" : "does not share", base.getName(), reason);
+            }
+            return shared ? base : versioned;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+
+/**
+ * The JVM settings used by every run, test, benchmark and CDS archive task of a specific version. Each version's
+ * settings are checked against its JDK before the first task which uses them.
+ */
+public abstract class RuntimeProfile {
+
+    /**
+     * Extra arguments to pass to the JVM, such as "-XX:+UseZGC"
+     * @return The JVM arguments
+     */
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * The initial heap size, such as "512m"
+     * @return The initial heap size
+     */
+    public abstract Property<String> getMinHeap();
+
+    /**
+     * The maximum heap size, such as "2g"
+     * @return The maximum heap size
+     */
+    public abstract Property<String> getMaxHeap();
+
+    /**
+     * The number of test classes to run in each forked test JVM before starting a new one. Only used by test tasks.
+     * @return The number of test classes per fork
+     */
+    public abstract Property<Long> getForkEvery();
+
+    /**
+     * Adds arguments to pass to the JVM
+     * @param args The JVM arguments
+     */
+    public void jvmArgs(String... args) {
+        getJvmArgs().addAll(args);
+    }
+
+}
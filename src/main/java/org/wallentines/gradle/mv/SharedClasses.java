@@ -0,0 +1,192 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.specs.Spec;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Tracks which main sources must be compiled separately for each version when compiled classes are shared between
+ * versions. A source is versioned if any additional version overrides it, or if a shared class compiled from it
+ * references an overridden class. Everything else is compiled once and reused by every additional version.
+ */
+class SharedClasses {
+
+    private final List<OverrideIndex> overrides = new ArrayList<>();
+    private final RegularFileProperty dependentsFile;
+
+    private transient Set<String> overridden;
+    private transient Set<String> dependents;
+    private transient long dependentsModified;
+
+    SharedClasses(RegularFileProperty dependentsFile) {
+        this.dependentsFile = dependentsFile;
+    }
+
+    /**
+     * Registers the overrides for an additional version
+     * @param index The override index for the version
+     */
+    void addOverrides(OverrideIndex index) {
+        overrides.add(index);
+        overridden = null;
+    }
+
+    /**
+     * Determines whether the overrides for an additional version have been registered
+     * @param index The override index for the version
+     * @return Whether the version shares classes
+     */
+    boolean hasOverrides(OverrideIndex index) {
+        return overrides.contains(index);
+    }
+
+    /**
+     * Gets the file which the list of shared classes which depend on overridden classes is written to
+     * @return The dependents file
+     */
+    RegularFileProperty getDependentsFile() {
+        return dependentsFile;
+    }
+
+    /**
+     * Gets a filter which matches main source files which can be compiled once and shared between all versions
+     * @return A filter for shared sources
+     */
+    Spec<FileTreeElement> sharedSources() {
+        return new SourceFilter(this, false);
+    }
+
+    /**
+     * Gets a filter which matches main source files which need to be compiled separately for each version. Only valid
+     * after the shared compile task has run.
+     * @return A filter for versioned sources
+     */
+    Spec<FileTreeElement> versionedSources() {
+        return new SourceFilter(this, true);
+    }
+
+
+    private boolean isShared(FileTreeElement element) {
+        return element.isDirectory() || !getOverridden().contains(element.getRelativePath().getPathString());
+    }
+
+    private boolean isVersioned(FileTreeElement element) {
+        if(element.isDirectory()) return true;
+
+        String path = element.getRelativePath().getPathString();
+        return getOverridden().contains(path) || getDependents().contains(path);
+    }
+
+
+    private Set<String> getOverridden() {
+        if(overridden == null) {
+            Set<String> out = new HashSet<>();
+            for(OverrideIndex index : overrides) {
+                out.addAll(index.getRelativePaths());
+            }
+            overridden = out;
+        }
+        return overridden;
+    }
+
+    private Set<String> getDependents() {
+
+        File file = dependentsFile.get().getAsFile();
+        if(dependents == null || file.lastModified() != dependentsModified) {
+            try {
+                dependents = file.isFile() ? new HashSet<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) : Collections.emptySet();
+                dependentsModified = file.lastModified();
+            } catch (IOException ex) {
+                throw new GradleException("Unable to read shared class dependents from " + file + "!", ex);
+            }
+        }
+        return dependents;
+    }
+
+
+    private static class SourceFilter implements Spec<FileTreeElement> {
+
+        private final SharedClasses shared;
+        private final boolean versioned;
+
+        SourceFilter(SharedClasses shared, boolean versioned) {
+            this.shared = shared;
+            this.versioned = versioned;
+        }
+
+        @Override
+        public boolean isSatisfiedBy(FileTreeElement element) {
+            return versioned ? shared.isVersioned(element) : shared.isShared(element);
+        }
+    }
+
+
+    /**
+     * Scans the output of the shared compile task for classes which reference overridden classes, and writes the
+     * relative paths of their sources to the dependents file.
+     */
+    static class ScanDependents implements Action<Task> {
+
+        private final SharedClasses shared;
+        private final DirectoryProperty classes;
+
+        ScanDependents(SharedClasses shared, DirectoryProperty classes) {
+            this.shared = shared;
+            this.classes = classes;
+        }
+
+        @Override
+        public void execute(Task task) {
+
+            List<String> overriddenClasses = new ArrayList<>();
+            for(String path : shared.getOverridden()) {
+                int extension = path.lastIndexOf('.');
+                overriddenClasses.add(extension == -1 ? path : path.substring(0, extension));
+            }
+
+            Set<String> out = new TreeSet<>();
+            Path root = classes.get().getAsFile().toPath();
+
+            try(Stream<Path> files = Files.walk(root)) {
+                Iterator<Path> it = files.filter(path -> path.toString().endsWith(".class")).iterator();
+                while(it.hasNext()) {
+                    ClassFileInfo info;
+                    try(InputStream in = new BufferedInputStream(Files.newInputStream(it.next()))) {
+                        info = ClassFileInfo.read(in);
+                    }
+                    String source = info.getSourcePath();
+                    if(source == null) continue;
+
+                    for(String overridden : overriddenClasses) {
+                        if(info.references(overridden)) {
+                            out.add(source);
+                            break;
+                        }
+                    }
+                }
+
+                Path file = shared.getDependentsFile().get().getAsFile().toPath();
+                Files.createDirectories(file.getParent());
+                Files.write(file, out, StandardCharsets.UTF_8);
+
+            } catch (IOException ex) {
+                throw new GradleException("Unable to scan shared classes in " + root + "!", ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.process.ExecOperations;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * Starts a toolchain's launcher once, which makes sure the installation actually runs and loads it into the file
+ * system cache before the first task which needs it
+ */
+public abstract class StartToolchain implements WorkAction<StartToolchain.Parameters> {
+
+    public interface Parameters extends WorkParameters {
+
+        Property<Integer> getVersion();
+
+        RegularFileProperty getExecutable();
+
+    }
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Override
+    public void execute() {
+
+        long start = System.nanoTime();
+        getExecOperations().exec(spec -> {
+            spec.setExecutable(getParameters().getExecutable().get().getAsFile());
+            spec.args("-version");
+            spec.setErrorOutput(new ByteArrayOutputStream());
+        });
+
+        Logging.getLogger(StartToolchain.class).lifecycle(String.format(Locale.ROOT, "Started Java %d in %.1f ms",
+                getParameters().getVersion().get(), (System.nanoTime() - start) / 1000000.0));
+    }
+
+}
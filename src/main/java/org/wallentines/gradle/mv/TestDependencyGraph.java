@@ -0,0 +1,236 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Records a class-level dependency graph of a versioned test task's classes. Every top-level class in the test classes
+ * directories and in the directories on the test runtime classpath becomes a node, with a hash of its class files, the
+ * source file it was compiled from, and the other nodes it references. Nested classes belong to their top-level class.
+ * Jars and resources on the classpath are only hashed, since changes to them cannot be traced to single classes.
+ */
+@CacheableTask
+public abstract class TestDependencyGraph extends DefaultTask {
+
+    private static final String TEST = "test";
+    private static final String CLASS = "class";
+    private static final String FILE = "file";
+    private static final String RUNS = "runs";
+
+    @Classpath
+    public abstract ConfigurableFileCollection getTestClasses();
+
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    @OutputFile
+    public abstract RegularFileProperty getGraph();
+
+    @TaskAction
+    public void record() throws IOException {
+
+        Graph graph = new Graph();
+        Map<String, Set<String>> references = new HashMap<>();
+        Map<String, TreeMap<String, String>> classFiles = new HashMap<>();
+        Set<File> testDirectories = getTestClasses().getFiles();
+
+        List<File> directories = new ArrayList<>(testDirectories);
+        for(File file : getClasspath()) {
+            if(file.isDirectory() && !testDirectories.contains(file)) {
+                directories.add(file);
+            } else if(file.isFile()) {
+                graph.files.add(file.getName() + " " + hash(Files.readAllBytes(file.toPath())));
+            }
+        }
+
+        // Classes earlier on the classpath hide later ones with the same name, as they do at runtime
+        Set<String> seen = new HashSet<>();
+        for(File directory : directories) {
+            if(!directory.isDirectory()) continue;
+
+            Path root = directory.toPath();
+            List<Path> files;
+            try(Stream<Path> stream = Files.walk(root)) {
+                files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+
+            for(Path file : files) {
+                String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+                if(!seen.add(relative)) continue;
+
+                byte[] bytes = Files.readAllBytes(file);
+                if(!relative.endsWith(".class") || relative.equals("module-info.class") || relative.endsWith("/package-info.class")) {
+                    graph.files.add(relative + " " + hash(bytes));
+                    continue;
+                }
+
+                ClassFileInfo info;
+                try(InputStream in = new ByteArrayInputStream(bytes)) {
+                    info = ClassFileInfo.read(in);
+                } catch (IOException ex) {
+                    throw new GradleException("Unable to read class file " + file + "!", ex);
+                }
+
+                String name = getTopLevelClass(info.getName());
+                Node node = graph.nodes.get(name);
+                if(node == null) {
+                    node = new Node(testDirectories.contains(directory));
+                    graph.nodes.put(name, node);
+                }
+                if(node.source == null) node.source = info.getSourcePath();
+
+                classFiles.computeIfAbsent(name, key -> new TreeMap<>()).put(relative, hash(bytes));
+                references.computeIfAbsent(name, key -> new HashSet<>()).addAll(info.getReferencedClasses());
+            }
+        }
+
+        for(Map.Entry<String, Node> entry : graph.nodes.entrySet()) {
+
+            StringBuilder hashes = new StringBuilder();
+            for(Map.Entry<String, String> file : classFiles.get(entry.getKey()).entrySet()) {
+                hashes.append(file.getKey()).append(' ').append(file.getValue()).append('\n');
+            }
+            entry.getValue().hash = hash(hashes.toString().getBytes(StandardCharsets.UTF_8));
+
+            for(String reference : references.get(entry.getKey())) {
+                String dependency = getTopLevelClass(reference);
+                if(!dependency.equals(entry.getKey()) && graph.nodes.containsKey(dependency)) {
+                    entry.getValue().dependencies.add(dependency);
+                }
+            }
+        }
+
+        File out = getGraph().get().getAsFile();
+        Files.createDirectories(out.getParentFile().toPath());
+        Files.write(out.toPath(), graph.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static String getTopLevelClass(String internalName) {
+
+        int nested = internalName.indexOf('$', internalName.lastIndexOf('/') + 1);
+        String name = nested == -1 ? internalName : internalName.substring(0, nested);
+
+        return name.replace('/', '.');
+    }
+
+    private static String hash(byte[] bytes) {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new GradleException("SHA-256 is not available!", ex);
+        }
+
+        StringBuilder out = new StringBuilder();
+        for(byte b : digest.digest(bytes)) {
+            out.append(String.format("%02x", b));
+        }
+        return out.toString();
+    }
+
+
+    /**
+     * A dependency graph read from a file written by {@link TestDependencyGraph}, along with the number of test runs
+     * which were recorded since all tests last ran, when read from a recorded copy
+     */
+    static class Graph {
+
+        final TreeMap<String, Node> nodes = new TreeMap<>();
+        final TreeSet<String> files = new TreeSet<>();
+        int runs;
+
+        /**
+         * Reads a graph file
+         * @param file The file to read
+         * @return The graph, or null if the file does not exist
+         */
+        static Graph read(File file) {
+
+            if(!file.isFile()) return null;
+
+            Graph out = new Graph();
+            try {
+                for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+
+                    String[] parts = line.split("\t", -1);
+                    if(parts[0].equals(RUNS) && parts.length == 2) {
+                        out.runs = Integer.parseInt(parts[1]);
+                    } else if(parts[0].equals(FILE) && parts.length == 2) {
+                        out.files.add(parts[1]);
+                    } else if((parts[0].equals(TEST) || parts[0].equals(CLASS)) && parts.length == 5) {
+
+                        Node node = new Node(parts[0].equals(TEST));
+                        node.hash = parts[2];
+                        node.source = parts[3].isEmpty() ? null : parts[3];
+                        if(!parts[4].isEmpty()) node.dependencies.addAll(Arrays.asList(parts[4].split(",")));
+                        out.nodes.put(parts[1], node);
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                throw new GradleException("Unable to read test dependency graph from " + file + "!", ex);
+            }
+            return out;
+        }
+
+        /**
+         * Writes this graph in the format read by {@link #read(File)}
+         * @param runs The number of recorded test runs since all tests last ran
+         * @return The graph as text
+         */
+        String format(int runs) {
+            return RUNS + "\t" + runs + "\n" + this;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder out = new StringBuilder();
+            for(String file : files) {
+                out.append(FILE).append('\t').append(file).append('\n');
+            }
+            for(Map.Entry<String, Node> entry : nodes.entrySet()) {
+                Node node = entry.getValue();
+                out.append(node.test ? TEST : CLASS).append('\t')
+                        .append(entry.getKey()).append('\t')
+                        .append(node.hash).append('\t')
+                        .append(node.source == null ? "" : node.source).append('\t')
+                        .append(String.join(",", node.dependencies)).append('\n');
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * A top-level class in a dependency graph
+     */
+    static class Node {
+
+        final boolean test;
+        final TreeSet<String> dependencies = new TreeSet<>();
+        String hash;
+        String source;
+
+        Node(boolean test) {
+            this.test = test;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.inject.Inject;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Combines the JUnit XML results of every versioned test task into one report, showing which tests pass, fail or were
+ * skipped on each version. Also records the duration of each test class, which is used to shard the next test run.
+ */
+@CacheableTask
+public abstract class TestMatrixReport extends DefaultTask {
+
+    private final List<VersionedResults> versionedResults = new ArrayList<>();
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Nested
+    public List<VersionedResults> getVersionedResults() {
+        return versionedResults;
+    }
+
+    @OutputFile
+    public abstract RegularFileProperty getReport();
+
+    @OutputFile
+    public abstract RegularFileProperty getHtmlReport();
+
+    @OutputFile
+    public abstract RegularFileProperty getDurations();
+
+    /**
+     * Adds the JUnit XML results of a test task which ran on the given version
+     * @param version The version the tests ran on
+     * @param results The directories containing the results
+     */
+    public void results(int version, Object... results) {
+        VersionedResults out = versionedResults.stream()
+                .filter(existing -> existing.getVersion().get() == version)
+                .findFirst()
+                .orElse(null);
+
+        if(out == null) {
+            out = getObjectFactory().newInstance(VersionedResults.class);
+            out.getVersion().set(version);
+            versionedResults.add(out);
+        }
+        out.getResults().from(results);
+    }
+
+    @TaskAction
+    public void report() throws IOException {
+
+        // Class -> Test -> Version -> Status
+        Map<String, Map<String, Map<Integer, String>>> tests = new TreeMap<>();
+        Map<String, Double> durations = new TreeMap<>();
+        TreeSet<Integer> versions = new TreeSet<>();
+
+        DocumentBuilder builder;
+        try {
+            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException ex) {
+            throw new GradleException("Unable to create an XML parser!", ex);
+        }
+
+        for(VersionedResults results : versionedResults) {
+
+            int version = results.getVersion().get();
+            versions.add(version);
+
+            for(File file : results.getResults().getAsFileTree().matching(pattern -> pattern.include("**/*.xml"))) {
+
+                Document document;
+                try {
+                    document = builder.parse(file);
+                } catch (SAXException ex) {
+                    throw new GradleException("Unable to parse test results from " + file + "!", ex);
+                }
+
+                NodeList cases = document.getElementsByTagName("testcase");
+                for(int i = 0 ; i < cases.getLength() ; i++) {
+
+                    Element testCase = (Element) cases.item(i);
+                    String className = testCase.getAttribute("classname");
+
+                    tests.computeIfAbsent(className, key -> new TreeMap<>())
+                            .computeIfAbsent(testCase.getAttribute("name"), key -> new TreeMap<>())
+                            .put(version, getStatus(testCase));
+
+                    durations.merge(version + ":" + getTopLevelClass(className), parseTime(testCase.getAttribute("time")), Double::sum);
+                }
+            }
+        }
+
+        write(getReport().get().getAsFile(), toJson(versions, tests));
+        write(getHtmlReport().get().getAsFile(), toHtml(versions, tests));
+
+        // Keep the previous durations of tests which did not run this time, such as tests which were not selected
+        File durationsFile = getDurations().get().getAsFile();
+        for(int version : versions) {
+            for(Map.Entry<String, Double> entry : TestShardSpec.readDurations(durationsFile, version).entrySet()) {
+                durations.putIfAbsent(version + ":" + entry.getKey(), entry.getValue());
+            }
+        }
+
+        StringBuilder durationsOut = new StringBuilder();
+        for(Map.Entry<String, Double> entry : durations.entrySet()) {
+            durationsOut.append(entry.getKey()).append('=').append(String.format(Locale.ROOT, "%.3f", entry.getValue())).append('\n');
+        }
+        write(durationsFile, durationsOut.toString());
+    }
+
+
+    private static String getStatus(Element testCase) {
+
+        if(testCase.getElementsByTagName("failure").getLength() > 0 || testCase.getElementsByTagName("error").getLength() > 0) {
+            return "failed";
+        }
+        if(testCase.getElementsByTagName("skipped").getLength() > 0) {
+            return "skipped";
+        }
+        return "passed";
+    }
+
+    private static double parseTime(String time) {
+        try {
+            return time.isEmpty() ? 0.0 : Double.parseDouble(time);
+        } catch (NumberFormatException ex) {
+            return 0.0;
+        }
+    }
+
+    private static String getTopLevelClass(String className) {
+        int nested = className.indexOf('$');
+        return nested == -1 ? className : className.substring(0, nested);
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static String toJson(TreeSet<Integer> versions, Map<String, Map<String, Map<Integer, String>>> tests) {
+
+        StringBuilder json = new StringBuilder("{\n  \"versions\": [");
+        boolean first = true;
+        for(int version : versions) {
+            if(!first) json.append(", ");
+            json.append(version);
+            first = false;
+        }
+        json.append("],\n  \"tests\": {");
+
+        first = true;
+        for(Map.Entry<String, Map<String, Map<Integer, String>>> testClass : tests.entrySet()) {
+            json.append(first ? "\n" : ",\n").append("    ").append(quote(testClass.getKey())).append(": {");
+            first = false;
+
+            boolean firstTest = true;
+            for(Map.Entry<String, Map<Integer, String>> test : testClass.getValue().entrySet()) {
+                json.append(firstTest ? "\n" : ",\n").append("      ").append(quote(test.getKey())).append(": {");
+                firstTest = false;
+
+                boolean firstVersion = true;
+                for(Map.Entry<Integer, String> status : test.getValue().entrySet()) {
+                    if(!firstVersion) json.append(", ");
+                    json.append(quote(status.getKey().toString())).append(": ").append(quote(status.getValue()));
+                    firstVersion = false;
+                }
+                json.append("}");
+            }
+            json.append("\n    }");
+        }
+
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    private static String toHtml(TreeSet<Integer> versions, Map<String, Map<String, Map<Integer, String>>> tests) {
+
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>Test Matrix</title>\n<style>\n")
+                .append("table { border-collapse: collapse; font-family: sans-serif; }\n")
+                .append("th, td { border: 1px solid #ccc; padding: 4px 8px; }\n")
+                .append(".passed { background: #cfc; } .failed { background: #fcc; } .skipped { background: #eee; }\n")
+                .append("</style>\n</head>\n<body>\n<table>\n<tr><th>Class</th><th>Test</th>");
+
+        for(int version : versions) {
+            html.append("<th>Java ").append(version).append("</th>");
+        }
+        html.append("</tr>\n");
+
+        for(Map.Entry<String, Map<String, Map<Integer, String>>> testClass : tests.entrySet()) {
+            for(Map.Entry<String, Map<Integer, String>> test : testClass.getValue().entrySet()) {
+                html.append("<tr><td>").append(escape(testClass.getKey())).append("</td><td>").append(escape(test.getKey())).append("</td>");
+                for(int version : versions) {
+                    String status = test.getValue().get(version);
+                    if(status == null) {
+                        html.append("<td></td>");
+                    } else {
+                        html.append("<td class=\"").append(status).append("\">").append(status).append("</td>");
+                    }
+                }
+                html.append("</tr>\n");
+            }
+        }
+
+        return html.append("</table>\n</body>\n</html>\n").toString();
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+
+    /**
+     * The test results of a specific version
+     */
+    public static abstract class VersionedResults {
+
+        @Input
+        public abstract Property<Integer> getVersion();
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.RELATIVE)
+        public abstract ConfigurableFileCollection getResults();
+
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Selects the test classes of a versioned test task which can be affected by the changes since the task's last
+ * successful run. A test class is selected when it reaches, through the {@link TestDependencyGraph}, a class which
+ * changed since then or a class which is overridden for the task's version. Every test class is selected when there
+ * is no recorded run, when a jar or resource on the classpath changed, when the given number of selective runs was
+ * reached, or when all tests are requested. The selection is read while the task runs, by {@link ApplyTestSelection},
+ * so it is not one of the task's inputs.
+ */
+class TestSelection {
+
+    private static final Logger LOGGER = Logging.getLogger(TestSelection.class);
+
+    private final String taskPath;
+    private final Provider<RegularFile> graphFile;
+    private final Provider<RegularFile> stateFile;
+    private final List<OverrideIndex> overrides;
+    private final Provider<String> allTests;
+    private final int fullRunInterval;
+
+    private transient Set<String> excluded;
+    private transient boolean fullRun;
+    private transient int selectedTests;
+    private transient int totalTests;
+
+    TestSelection(String taskPath, Provider<RegularFile> graphFile, Provider<RegularFile> stateFile, List<OverrideIndex> overrides, Provider<String> allTests, int fullRunInterval) {
+        this.taskPath = taskPath;
+        this.graphFile = graphFile;
+        this.stateFile = stateFile;
+        this.overrides = overrides;
+        this.allTests = allTests;
+        this.fullRunInterval = fullRunInterval;
+    }
+
+    /**
+     * Determines whether no test class is affected by any change or override, so the task has nothing to run
+     * @return Whether every test class is excluded
+     */
+    boolean isEmpty() {
+        getExcluded();
+        return !fullRun && selectedTests == 0 && totalTests > 0;
+    }
+
+    /**
+     * Records the current dependency graph as the state of the task's last successful run, so the next run only
+     * selects tests affected by changes made after it
+     */
+    void record() {
+
+        File graph = graphFile.get().getAsFile();
+        File state = stateFile.get().getAsFile();
+
+        TestDependencyGraph.Graph current = TestDependencyGraph.Graph.read(graph);
+        if(current == null) return;
+
+        getExcluded();
+        if(!fullRun) LOGGER.lifecycle("Selected {} of {} test classes affected by changes or overrides", selectedTests, totalTests);
+
+        TestDependencyGraph.Graph previous = TestDependencyGraph.Graph.read(state);
+        int runs = fullRun || previous == null ? 0 : previous.runs + 1;
+
+        try {
+            Files.createDirectories(state.getParentFile().toPath());
+            Files.write(state.toPath(), current.format(runs).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new GradleException("Unable to record test selection state to " + state + "!", ex);
+        }
+    }
+
+
+    /**
+     * Gets the names of the top-level test classes which are not affected by any change or override
+     * @return The classes to exclude from the run
+     */
+    Set<String> getExcluded() {
+
+        if(excluded == null) {
+
+            TestDependencyGraph.Graph current = TestDependencyGraph.Graph.read(graphFile.get().getAsFile());
+            TestDependencyGraph.Graph previous = TestDependencyGraph.Graph.read(stateFile.get().getAsFile());
+
+            String reason = getFullRunReason(current, previous);
+            if(reason != null) {
+                LOGGER.info("Running all tests of {}: {}", taskPath, reason);
+                fullRun = true;
+                excluded = Collections.emptySet();
+                return excluded;
+            }
+
+            Set<String> overridden = new HashSet<>();
+            for(OverrideIndex index : overrides) {
+                overridden.addAll(index.getRelativePaths());
+            }
+
+            // Walk the graph backwards from every changed or overridden class
+            Map<String, List<String>> dependents = new HashMap<>();
+            Deque<String> queue = new ArrayDeque<>();
+            for(Map.Entry<String, TestDependencyGraph.Node> entry : current.nodes.entrySet()) {
+
+                TestDependencyGraph.Node node = entry.getValue();
+                for(String dependency : node.dependencies) {
+                    dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(entry.getKey());
+                }
+
+                TestDependencyGraph.Node old = previous.nodes.get(entry.getKey());
+                if(old == null || !old.hash.equals(node.hash) || overridden.contains(node.source)) {
+                    queue.add(entry.getKey());
+                }
+            }
+
+            Set<String> affected = new HashSet<>(queue);
+            while(!queue.isEmpty()) {
+                for(String dependent : dependents.getOrDefault(queue.poll(), Collections.emptyList())) {
+                    if(affected.add(dependent)) queue.add(dependent);
+                }
+            }
+
+            Set<String> out = new HashSet<>();
+            int tests = 0;
+            for(Map.Entry<String, TestDependencyGraph.Node> entry : current.nodes.entrySet()) {
+                if(!entry.getValue().test) continue;
+                tests++;
+                if(!affected.contains(entry.getKey())) out.add(entry.getKey());
+            }
+
+            LOGGER.info("Selected {} of {} test classes of {} affected by changes or overrides", tests - out.size(), tests, taskPath);
+            selectedTests = tests - out.size();
+            totalTests = tests;
+            excluded = out;
+        }
+        return excluded;
+    }
+
+    private String getFullRunReason(TestDependencyGraph.Graph current, TestDependencyGraph.Graph previous) {
+
+        if(allTests.isPresent() && !allTests.get().equalsIgnoreCase("false")) return "all tests were requested";
+        if(current == null) return "there is no dependency graph";
+        if(previous == null) return "there is no recorded run";
+        if(fullRunInterval > 0 && previous.runs >= fullRunInterval) return previous.runs + " selective runs were recorded since all tests last ran";
+        if(!current.files.equals(previous.files)) return "a jar or resource on the classpath changed";
+        return null;
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Selects the test classes which belong to one shard of a versioned test task. Test classes are spread over the shards
+ * by their durations in the previous test matrix run, placing the longest classes first on the shard with the least
+ * total duration so far. Classes without a recorded duration are given the average duration. Every shard of a version
+ * computes the same assignment, so each test class runs exactly once.
+ */
+class TestShardSpec implements Spec<FileTreeElement> {
+
+    private final FileCollection testClassesDirs;
+    private final Provider<RegularFile> durationsFile;
+    private final int version;
+    private final int shard;
+    private final int shards;
+
+    private transient Set<String> classes;
+
+    TestShardSpec(FileCollection testClassesDirs, Provider<RegularFile> durationsFile, int version, int shard, int shards) {
+        this.testClassesDirs = testClassesDirs;
+        this.durationsFile = durationsFile;
+        this.version = version;
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    @Override
+    public boolean isSatisfiedBy(FileTreeElement element) {
+        if(element.isDirectory()) return true;
+        return getClasses().contains(getTopLevelClass(element.getRelativePath().getPathString()));
+    }
+
+
+    private Set<String> getClasses() {
+
+        if(classes == null) {
+
+            Set<String> all = new TreeSet<>();
+            testClassesDirs.getAsFileTree().visit(details -> {
+                if(!details.isDirectory() && details.getName().endsWith(".class")) {
+                    all.add(getTopLevelClass(details.getRelativePath().getPathString()));
+                }
+            });
+
+            Map<String, Double> durations = readDurations(durationsFile.get().getAsFile(), version);
+            double average = durations.isEmpty() ? 1.0 : durations.values().stream().mapToDouble(Double::doubleValue).average().orElse(1.0);
+
+            List<String> sorted = new ArrayList<>(all);
+            sorted.sort(Comparator.comparing((String name) -> durations.getOrDefault(name, average)).reversed().thenComparing(name -> name));
+
+            double[] totals = new double[shards];
+            Set<String> out = new HashSet<>();
+            for(String name : sorted) {
+                int target = 0;
+                for(int i = 1 ; i < shards ; i++) {
+                    if(totals[i] < totals[target]) target = i;
+                }
+                totals[target] += durations.getOrDefault(name, average);
+                if(target == shard) out.add(name);
+            }
+            classes = out;
+        }
+        return classes;
+    }
+
+    /**
+     * Reads the test class durations recorded for a version by the test matrix report
+     * @param file The durations file
+     * @param version The version to read durations for
+     * @return A map of test class names to durations in seconds
+     */
+    static Map<String, Double> readDurations(File file, int version) {
+
+        Map<String, Double> out = new HashMap<>();
+        if(!file.isFile()) return out;
+
+        String prefix = version + ":";
+        try {
+            for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                int separator = line.lastIndexOf('=');
+                if(!line.startsWith(prefix) || separator == -1) continue;
+
+                try {
+                    out.put(line.substring(prefix.length(), separator), Double.parseDouble(line.substring(separator + 1)));
+                } catch (NumberFormatException ex) {
+                    // Ignore malformed entries, the file is rewritten after every run
+                }
+            }
+        } catch (IOException ex) {
+            throw new GradleException("Unable to read test durations from " + file + "!", ex);
+        }
+        return out;
+    }
+
+    private static String getTopLevelClass(String path) {
+
+        String name = path.endsWith(".class") ? path.substring(0, path.length() - 6) : path;
+        int nested = name.indexOf('$', name.lastIndexOf('/') + 1);
+        if(nested != -1) name = name.substring(0, nested);
+
+        return name.replace('/', '.');
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.wallentines.gradle.mv;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+import org.gradle.work.DisableCachingByDefault;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a version's JVM with the arguments of its {@link RuntimeProfile}, and fails if the JVM rejects any of them.
+ * Options which the JVM accepts but ignores, such as garbage collectors which were removed, also fail, since tasks
+ * would otherwise silently run with different settings.
+ */
+@DisableCachingByDefault(because = "Whether a JVM supports the arguments depends on the local installation")
+public abstract class ValidateRuntimeProfile extends DefaultTask {
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    @Input
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * A file to write the JVM's version output to once the arguments are accepted
+     * @return The output file
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOutputFile();
+
+    @TaskAction
+    public void validate() throws IOException {
+
+        JavaLauncher launcher = getJavaLauncher().get();
+        int version = launcher.getMetadata().getLanguageVersion().asInt();
+
+        List<String> args = new ArrayList<>(getJvmArgs().get());
+        args.add("-version");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExecResult result = getExecOperations().exec(spec -> {
+            spec.setExecutable(launcher.getExecutablePath().getAsFile());
+            spec.setArgs(args);
+            spec.setStandardOutput(output);
+            spec.setErrorOutput(output);
+            spec.setIgnoreExitValue(true);
+        });
+
+        String text = new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+        if(result.getExitValue() != 0) {
+            throw new GradleException("Java " + version + " does not support the runtime profile " + getJvmArgs().get() + ":\n" + text);
+        }
+        for(String line : text.split("\\R")) {
+            if(line.contains("warning: Ignoring option")) {
+                throw new GradleException("Java " + version + " ignores part of the runtime profile " + getJvmArgs().get() + ":\n" + line);
+            }
+            if(line.contains("warning:")) {
+                getLogger().warn("Java " + version + ": " + line);
+            }
+        }
+
+        File outputFile = getOutputFile().get().getAsFile();
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        Files.write(outputFile.toPath(), output.toByteArray());
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.wallentines.gradle.mv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The versions declared once in the settings script by {@link MultiVersionSettingsPlugin}, shared by every project
+ * which applies {@link MultiVersionPlugin}. It only holds plain values, which never change once the settings script
+ * has been evaluated, so projects can read it while they are configured in parallel. Each project looks up its own
+ * toolchains for these versions.
+ */
+public final class VersionModel {
+
+    private final int defaultVersion;
+    private final List<Integer> additionalVersions;
+
+    VersionModel(int defaultVersion, Collection<Integer> additionalVersions) {
+        this.defaultVersion = defaultVersion;
+        this.additionalVersions = Collections.unmodifiableList(new ArrayList<>(additionalVersions));
+    }
+
+    /**
+     * Gets the version which overrides the default compile and jar tasks of each project
+     * @return The default version, or 0 if projects declare their own
+     */
+    public int getDefaultVersion() {
+        return defaultVersion;
+    }
+
+    /**
+     * Gets the additional versions each project is compiled for, in ascending order. Versions which were not requested
+     * with the multiVersion.versions property are not included.
+     * @return An unmodifiable list of versions
+     */
+    public List<Integer> getAdditionalVersions() {
+        return additionalVersions;
+    }
+
+    /**
+     * Determines whether a version was requested by a comma-separated list of versions
+     * @param requested The list of versions, or null if every version is requested
+     * @param property The name of the property the list came from, for error messages
+     * @param version The version to check
+     * @return Whether the version was requested
+     */
+    static boolean isRequested(String requested, String property, int version) {
+
+        if(requested == null) return true;
+
+        for(String value : requested.split(",")) {
+            try {
+                if(Integer.parseInt(value.trim()) == version) return true;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid version \"" + value.trim() + "\" in " + property + "!", ex);
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.wallentines.gradle.mv.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The main class of a launcher jar. Picks the versioned jar stored in the launcher jar which best matches the Java
+ * version it is running on, then runs that jar's main class. Only the selected versioned jar is read, in a single read
+ * through the launcher jar the JVM already opened, and its classes are defined from slices of that buffer, so nothing
+ * is extracted at startup. Memory-mapping the launcher jar instead was measured to be slower, since mapping a file
+ * bootstraps lambdas on newer JVMs.
+ * <p>
+ * This class is copied into launcher jars, so it must stay compatible with Java 8 and must not depend on anything but
+ * the other classes in this package.
+ */
+public class Launcher {
+
+    /**
+     * The directory in the launcher jar which contains the versioned jars
+     */
+    public static final String PAYLOAD_DIRECTORY = "META-INF/launcher/";
+
+    /**
+     * The launcher jar's manifest attribute containing the main class to run. If absent, the versioned jar's
+     * Main-Class is used.
+     */
+    public static final String MAIN_CLASS_ATTRIBUTE = "Launcher-Main-Class";
+
+    /**
+     * Set this system property to true to print how long the launcher took before running the main class
+     */
+    public static final String TIMING_PROPERTY = "multiVersion.launcher.timing";
+
+    public static void main(String[] args) throws Throwable {
+
+        long start = System.nanoTime();
+        int runtimeVersion = getRuntimeVersion();
+
+        URL location = Launcher.class.getProtectionDomain().getCodeSource().getLocation();
+        File file = new File(location.toURI());
+
+        String payloadName;
+        String mainClass;
+        NestedJar payload;
+        try(JarFile launcher = new JarFile(file)) {
+
+            // Looking up each version is cheaper than iterating the entries, which bootstraps lambdas on Java 9+
+            JarEntry entry = null;
+            for(int version = runtimeVersion ; version > 0 && entry == null ; version--) {
+                entry = launcher.getJarEntry(getPayloadName(version));
+            }
+            if(entry == null) {
+                throw new IllegalStateException("This jar does not support Java " + runtimeVersion + "!");
+            }
+
+            payloadName = entry.getName();
+            payload = new NestedJar(readEntry(launcher, entry));
+
+            Manifest manifest = launcher.getManifest();
+            mainClass = manifest == null ? null : manifest.getMainAttributes().getValue(MAIN_CLASS_ATTRIBUTE);
+        }
+
+        Attributes payloadAttributes = readManifest(payload);
+        if(mainClass == null) mainClass = payloadAttributes.getValue(Attributes.Name.MAIN_CLASS);
+        if(mainClass == null) {
+            throw new IllegalStateException("No main class is specified in the launcher jar or in " + payloadName + "!");
+        }
+
+        boolean multiRelease = Boolean.parseBoolean(payloadAttributes.getValue("Multi-Release"));
+        ClassLoader loader = new NestedJarClassLoader(payload, location, file.getAbsolutePath() + "!/" + payloadName,
+                runtimeVersion, multiRelease, Launcher.class.getClassLoader());
+
+        Thread.currentThread().setContextClassLoader(loader);
+        Method main = Class.forName(mainClass, false, loader).getMethod("main", String[].class);
+
+        if(Boolean.getBoolean(TIMING_PROPERTY)) {
+            System.err.printf("Launcher selected %s for Java %d in %.3f ms%n", payloadName, runtimeVersion, (System.nanoTime() - start) / 1000000.0);
+        }
+
+        try {
+            main.invoke(null, (Object) args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Gets the name of the entry containing the jar for the given version
+     * @param version The version
+     * @return The entry name
+     */
+    public static String getPayloadName(int version) {
+        return PAYLOAD_DIRECTORY + "java" + version + ".jar";
+    }
+
+
+    private static int getRuntimeVersion() {
+
+        // Java 8 and below report their versions as 1.x
+        String version = System.getProperty("java.specification.version");
+        if(version.startsWith("1.")) version = version.substring(2);
+        return Integer.parseInt(version);
+    }
+
+    private static ByteBuffer readEntry(JarFile jar, JarEntry entry) throws IOException {
+
+        long size = entry.getSize();
+        if(size < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid size for " + entry.getName() + "!");
+        }
+
+        byte[] out = new byte[(int) size];
+        try(InputStream in = jar.getInputStream(entry)) {
+            int read = 0;
+            while(read < out.length) {
+                int count = in.read(out, read, out.length - read);
+                if(count == -1) throw new IOException("Truncated entry " + entry.getName() + "!");
+                read += count;
+            }
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    private static Attributes readManifest(NestedJar jar) throws IOException {
+
+        ByteBuffer bytes = jar.read(JarFile.MANIFEST_NAME);
+        if(bytes == null) return new Attributes();
+
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        return new Manifest(new ByteArrayInputStream(array)).getMainAttributes();
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.wallentines.gradle.mv.launcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only view of a zip archive stored in a byte buffer. Entries are indexed by reading the central directory, and
+ * stored entries are returned as slices of the buffer rather than copies. Zip64 archives are not supported.
+ */
+class NestedJar {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    NestedJar(ByteBuffer buffer) throws IOException {
+
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = findEndOfCentralDirectory();
+        int count = getUnsignedShort(end + 10);
+        int offset = getInt(end + 16);
+
+        for(int i = 0 ; i < count ; i++) {
+            if(this.buffer.getInt(offset) != CENTRAL_DIRECTORY_ENTRY) {
+                throw new IOException("Invalid central directory entry!");
+            }
+            int nameLength = getUnsignedShort(offset + 28);
+            Entry entry = new Entry(
+                    getUnsignedShort(offset + 10),
+                    getInt(offset + 20),
+                    getInt(offset + 24),
+                    getInt(offset + 42));
+            entries.put(getString(offset + 46, nameLength), entry);
+            offset += 46 + nameLength + getUnsignedShort(offset + 30) + getUnsignedShort(offset + 32);
+        }
+    }
+
+    /**
+     * Gets the names of every entry in this archive
+     * @return The entry names
+     */
+    Set<String> getNames() {
+        return entries.keySet();
+    }
+
+    /**
+     * Determines whether this archive contains an entry with the given name
+     * @param name The entry name
+     * @return Whether the entry exists
+     */
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Reads an entry. Stored entries are returned as a slice of this archive's buffer, deflated entries are inflated
+     * into a new buffer.
+     * @param name The entry name
+     * @return The entry's contents, or null if there is no such entry
+     * @throws IOException If the entry is malformed or uses an unsupported compression method
+     */
+    ByteBuffer read(String name) throws IOException {
+
+        Entry entry = entries.get(name);
+        if(entry == null) return null;
+
+        int header = entry.headerOffset;
+        if(buffer.getInt(header) != LOCAL_HEADER) {
+            throw new IOException("Invalid local header for " + name + "!");
+        }
+        int start = header + 30 + getUnsignedShort(header + 26) + getUnsignedShort(header + 28);
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(start);
+        data.limit(start + entry.compressedSize);
+        data = data.slice();
+
+        if(entry.method == STORED) {
+            return data;
+        }
+        if(entry.method != DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method + " for " + name + "!");
+        }
+
+        byte[] compressed = new byte[entry.compressedSize];
+        data.get(compressed);
+
+        byte[] out = new byte[entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int read = 0;
+            while(read < out.length && !inflater.finished()) {
+                int inflated = inflater.inflate(out, read, out.length - read);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += inflated;
+            }
+            if(read != out.length) {
+                throw new IOException("Truncated entry " + name + "!");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Unable to inflate " + name + "!", ex);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+
+    private int findEndOfCentralDirectory() throws IOException {
+
+        // The end record is followed by a comment of at most 65535 bytes
+        int last = buffer.limit() - 22;
+        int first = Math.max(0, last - 65535);
+        for(int offset = last ; offset >= first ; offset--) {
+            if(buffer.getInt(offset) == END_OF_CENTRAL_DIRECTORY) {
+                if(getInt(offset + 16) == -1 || getUnsignedShort(offset + 10) == 0xFFFF) {
+                    throw new IOException("Zip64 archives are not supported!");
+                }
+                return offset;
+            }
+        }
+        throw new IOException("Unable to find the end of the central directory!");
+    }
+
+    private int getUnsignedShort(int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private int getInt(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    private String getString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0 ; i < length ; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    private static class Entry {
+
+        final int method;
+        final int compressedSize;
+        final int size;
+        final int headerOffset;
+
+        Entry(int method, int compressedSize, int size, int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+}
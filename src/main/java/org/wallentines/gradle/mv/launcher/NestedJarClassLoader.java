@@ -0,0 +1,173 @@
+package org.wallentines.gradle.mv.launcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Loads classes and resources from a jar stored inside the launcher jar. Classes are defined directly from the buffer
+ * the jar was read into. Multi-release jars are supported, using the versioned entries for the running Java version.
+ */
+class NestedJarClassLoader extends ClassLoader {
+
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final NestedJar jar;
+    private final String location;
+    private final List<String> versionPrefixes;
+    private final ProtectionDomain protectionDomain;
+    private URLStreamHandler handler;
+
+    NestedJarClassLoader(NestedJar jar, URL codeSource, String location, int runtimeVersion, boolean multiRelease, ClassLoader parent) {
+        super(parent);
+        this.jar = jar;
+        this.location = location;
+        this.versionPrefixes = multiRelease ? getVersionPrefixes(jar, runtimeVersion) : Collections.<String>emptyList();
+        this.protectionDomain = new ProtectionDomain(new CodeSource(codeSource, (Certificate[]) null), null, this, null);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+
+        String entry = findEntry(name.replace('.', '/') + ".class");
+        if(entry == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        ByteBuffer bytes;
+        try {
+            bytes = jar.read(entry);
+        } catch (IOException ex) {
+            throw new ClassNotFoundException(name, ex);
+        }
+
+        int lastDot = name.lastIndexOf('.');
+        if(lastDot != -1) {
+            definePackage(name.substring(0, lastDot));
+        }
+        return defineClass(name, bytes, protectionDomain);
+    }
+
+    @Override
+    protected URL findResource(String name) {
+
+        String entry = findEntry(name);
+        if(entry == null) return null;
+        synchronized (this) {
+            if(handler == null) handler = new Handler();
+        }
+        try {
+            return new URL("nested", null, -1, location + "!/" + entry, handler);
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+
+        URL url = findResource(name);
+        return url == null ? Collections.<URL>emptyEnumeration() : Collections.enumeration(Collections.singletonList(url));
+    }
+
+
+    @SuppressWarnings("deprecation")
+    private void definePackage(String name) {
+
+        if(getPackage(name) != null) return;
+        try {
+            definePackage(name, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException ex) {
+            // Defined by another thread
+        }
+    }
+
+    private String findEntry(String name) {
+
+        for(String prefix : versionPrefixes) {
+            if(jar.contains(prefix + name)) return prefix + name;
+        }
+        return jar.contains(name) ? name : null;
+    }
+
+    private static List<String> getVersionPrefixes(NestedJar jar, int runtimeVersion) {
+
+        List<String> out = new ArrayList<>();
+        for(int version = runtimeVersion ; version >= 9 ; version--) {
+            String prefix = VERSIONS_PREFIX + version + "/";
+            for(String name : jar.getNames()) {
+                if(name.startsWith(prefix)) {
+                    out.add(prefix);
+                    break;
+                }
+            }
+        }
+        return out;
+    }
+
+
+    private class Handler extends URLStreamHandler {
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new URLConnection(url) {
+                @Override
+                public void connect() { }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    String path = getURL().getPath();
+                    ByteBuffer bytes = jar.read(path.substring(path.lastIndexOf("!/") + 2));
+                    if(bytes == null) {
+                        throw new IOException("Unable to find " + getURL() + "!");
+                    }
+                    return new BufferInputStream(bytes);
+                }
+            };
+        }
+    }
+
+
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if(!buffer.hasRemaining()) return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+package org.wallentines.gradle.mv.perf;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.BuildTask;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.gradle.testkit.runner.UnexpectedBuildFailure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the plugin on small generated projects and checks the results of the build, for behavior which cannot be
+ * checked without running Gradle or the built jars. Each check runs in both source set and source directory set mode,
+ * and throws an {@link IllegalStateException} if it fails. The process exits with a non-zero status if any check
+ * failed.
+ * <p>
+ * Usage: {@code FunctionalChecks <work directory> <checks> <version>=<java executable>...}
+ */
+public class FunctionalChecks {
+
+    private static final List<String> CHECKS = Arrays.asList("multiReleaseJar", "launcherJar", "configurationCache", "relocatability");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if(args.length < 2) {
+            System.err.println("Usage: FunctionalChecks <work directory> <checks> <version>=<java executable>...");
+            System.exit(1);
+        }
+
+        File workDir = new File(args[0]);
+        List<String> selected = args[1].equals("all") ? CHECKS : Arrays.asList(args[1].split(","));
+
+        Map<Integer, String> executables = new TreeMap<>();
+        for(int i = 2 ; i < args.length ; i++) {
+            int split = args[i].indexOf('=');
+            executables.put(Integer.parseInt(args[i].substring(0, split)), args[i].substring(split + 1));
+        }
+
+        int failed = 0;
+        for(String check : selected) {
+            for(boolean sourceDirectorySets : new boolean[] { false, true }) {
+
+                String name = check + (sourceDirectorySets ? "-sourceDirectorySets" : "-sourceSets");
+                System.out.println("Running check " + name + "...");
+
+                File projectDir = new File(workDir, name);
+                deleteRecursively(projectDir);
+                try {
+                    switch (check) {
+                        case "multiReleaseJar":
+                            checkMultiReleaseJar(projectDir, sourceDirectorySets, executables);
+                            break;
+                        case "launcherJar":
+                            checkLauncherJar(projectDir, sourceDirectorySets, executables);
+                            break;
+                        case "configurationCache":
+                            checkConfigurationCache(projectDir, sourceDirectorySets);
+                            break;
+                        case "relocatability":
+                            checkRelocatability(projectDir, sourceDirectorySets);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown check " + check + "!");
+                    }
+                    System.out.println("Check " + name + " passed");
+                } catch (IllegalStateException | UnexpectedBuildFailure ex) {
+                    System.err.println("Check " + name + " failed: " + ex.getMessage());
+                    failed++;
+                }
+            }
+        }
+
+        if(failed > 0) {
+            System.err.println(failed + " checks failed");
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Builds a multi-release jar whose default version is between two additional versions, and runs it on Java 11,
+     * which should use the Java 11 classes, and on the default version and above, which should use the default classes
+     */
+    private static void checkMultiReleaseJar(File dir, boolean sourceDirectorySets, Map<Integer, String> executables) throws IOException, InterruptedException {
+
+        write(new File(dir, "settings.gradle.kts"), "rootProject.name = \"check\"\n");
+        write(new File(dir, "build.gradle.kts"),
+                "plugins {\n" +
+                "    id(\"org.wallentines.gradle-multi-version\")\n" +
+                "}\n" +
+                "java.toolchain.languageVersion.set(JavaLanguageVersion.of(17))\n" +
+                "multiVersion {\n" +
+                (sourceDirectorySets ? "    useSourceDirectorySets()\n" : "") +
+                "    skipApiGuardianDependency()\n" +
+                "    multiReleaseJar()\n" +
+                "    defaultVersion(17)\n" +
+                "    additionalVersions(11, 8)\n" +
+                "}\n");
+
+        writeSources(dir, sourceDirectorySets);
+
+        GradleRunner.create()
+                .withProjectDir(dir)
+                .withPluginClasspath()
+                .withArguments("jar", "--offline")
+                .build();
+
+        String jar = new File(dir, "build/libs/check.jar").getAbsolutePath();
+        expectOutput(run(executables, 11, "-cp", jar, "check.Main"), "j11 1");
+        expectOutput(run(executables, 17, "-cp", jar, "check.Main"), "main 1");
+        expectOutput(run(executables, 21, "-cp", jar, "check.Main"), "main 1");
+    }
+
+
+    /**
+     * Builds a launcher jar with a multi-release default jar and a separate Java 8 jar, and runs it on Java 8, 11, 17
+     * and 21, which should each run their own version's classes, or the default classes from Java 17 up
+     */
+    private static void checkLauncherJar(File dir, boolean sourceDirectorySets, Map<Integer, String> executables) throws IOException, InterruptedException {
+
+        write(new File(dir, "settings.gradle.kts"), "rootProject.name = \"check\"\n");
+        write(new File(dir, "build.gradle.kts"),
+                "plugins {\n" +
+                "    application\n" +
+                "    id(\"org.wallentines.gradle-multi-version\")\n" +
+                "}\n" +
+                "java.toolchain.languageVersion.set(JavaLanguageVersion.of(17))\n" +
+                "application.mainClass.set(\"check.Main\")\n" +
+                "multiVersion {\n" +
+                (sourceDirectorySets ? "    useSourceDirectorySets()\n" : "") +
+                "    skipApiGuardianDependency()\n" +
+                "    multiReleaseJar()\n" +
+                "    launcherJar()\n" +
+                "    defaultVersion(17)\n" +
+                "    additionalVersions(11, 8)\n" +
+                "}\n");
+
+        writeSources(dir, sourceDirectorySets);
+
+        GradleRunner.create()
+                .withProjectDir(dir)
+                .withPluginClasspath()
+                .withArguments("launcherJar", "--offline")
+                .build();
+
+        String launcher = new File(dir, "build/libs/check-launcher.jar").getAbsolutePath();
+        expectOutput(run(executables, 8, "-jar", launcher), "j8 1");
+        expectOutput(run(executables, 11, "-jar", launcher), "j11 1");
+        expectOutput(run(executables, 17, "-jar", launcher), "main 1");
+        expectOutput(run(executables, 21, "-jar", launcher), "main 1");
+    }
+
+
+    /**
+     * Builds a project with overrides for several versions twice with the configuration cache, and expects the second
+     * build to reuse the entry the first one stored
+     */
+    private static void checkConfigurationCache(File dir, boolean sourceDirectorySets) throws IOException {
+
+        write(new File(dir, "settings.gradle.kts"), "rootProject.name = \"check\"\n");
+        write(new File(dir, "build.gradle.kts"),
+                "plugins {\n" +
+                "    application\n" +
+                "    id(\"org.wallentines.gradle-multi-version\")\n" +
+                "}\n" +
+                "java.toolchain.languageVersion.set(JavaLanguageVersion.of(17))\n" +
+                "application.mainClass.set(\"check.Main\")\n" +
+                "multiVersion {\n" +
+                (sourceDirectorySets ? "    useSourceDirectorySets()\n" : "") +
+                "    skipApiGuardianDependency()\n" +
+                "    defaultVersion(17)\n" +
+                "    additionalVersions(11, 8)\n" +
+                "}\n");
+
+        writeSources(dir, sourceDirectorySets);
+
+        GradleRunner runner = GradleRunner.create()
+                .withProjectDir(dir)
+                .withPluginClasspath()
+                .withArguments("assemble", "--configuration-cache", "--offline");
+
+        expectContains(runner.build().getOutput(), "Configuration cache entry stored");
+        expectContains(runner.build().getOutput(), "Reusing configuration cache");
+    }
+
+
+    /**
+     * Builds and tests a project with the build cache, then moves it to another directory and builds it again, and
+     * expects every compile, versioned jar and test task to be loaded from the cache
+     */
+    private static void checkRelocatability(File dir, boolean sourceDirectorySets) throws IOException {
+
+        File original = new File(dir, "original");
+        File relocated = new File(dir, "relocated");
+        File cache = new File(dir, "cache");
+
+        write(new File(original, "settings.gradle.kts"),
+                "rootProject.name = \"check\"\n" +
+                "buildCache {\n" +
+                "    local {\n" +
+                "        directory = File(\"" + cache.getAbsolutePath().replace("\\", "/") + "\")\n" +
+                "    }\n" +
+                "}\n");
+        write(new File(original, "build.gradle.kts"),
+                "plugins {\n" +
+                "    id(\"org.wallentines.gradle-multi-version\")\n" +
+                "}\n" +
+                "java.toolchain.languageVersion.set(JavaLanguageVersion.of(17))\n" +
+                "multiVersion {\n" +
+                (sourceDirectorySets ? "    useSourceDirectorySets()\n" : "") +
+                "    skipApiGuardianDependency()\n" +
+                "    defaultVersion(17)\n" +
+                "    additionalVersions(11, 8)\n" +
+                "}\n" +
+                "\n" +
+                "// The checked test classes contain no tests, since no test framework can be resolved offline\n" +
+                "tasks.withType<Test>().configureEach {\n" +
+                "    failOnNoDiscoveredTests.set(false)\n" +
+                "}\n");
+        writeSources(original, sourceDirectorySets);
+        writeTestSources(original, sourceDirectorySets);
+
+        GradleRunner.create()
+                .withProjectDir(original)
+                .withPluginClasspath()
+                .withArguments("build", "--build-cache", "--offline")
+                .build();
+
+        // Only sources are moved, as they would be by a fresh checkout somewhere else
+        copySources(original, relocated);
+        deleteRecursively(original);
+
+        BuildResult result = GradleRunner.create()
+                .withProjectDir(relocated)
+                .withPluginClasspath()
+                .withArguments("build", "--build-cache", "--offline")
+                .build();
+
+        // Every versioned compile, jar and test task must be cached, along with the default compile and test tasks
+        for(int version : new int[] { 11, 8 }) {
+            String compileTest = sourceDirectorySets ? ":compileTestJava" + version + "Java" : ":compileJava" + version + "TestJava";
+            for(String task : new String[] { ":compileJava" + version + "Java", ":java" + version + "Jar", compileTest, ":java" + version + "Test" }) {
+                expectFromCache(result, task);
+            }
+        }
+        for(String task : new String[] { ":compileJava", ":compileTestJava", ":test" }) {
+            expectFromCache(result, task);
+        }
+        for(BuildTask task : result.getTasks()) {
+            if(task.getPath().matches(":(compile\\w*)?[jJ]ava\\d+\\w*") && !task.getPath().endsWith("Classes") && task.getOutcome() != TaskOutcome.NO_SOURCE) {
+                expectFromCache(result, task.getPath());
+            }
+        }
+    }
+
+
+    /**
+     * Writes a test class for the default version, and one which is only compiled for Java 11. They contain no tests,
+     * but their test tasks still run and are cached.
+     */
+    private static void writeTestSources(File dir, boolean sourceDirectorySets) throws IOException {
+
+        write(new File(dir, "src/test/java/check/MainCheck.java"),
+                "package check;\n\n" +
+                "public class MainCheck {\n" +
+                "    final String name = Variant.NAME;\n" +
+                "}\n");
+        write(new File(dir, sourceDirectorySets ? "src/test/java11/check/VersionCheck.java" : "src/java11Test/java/check/VersionCheck.java"),
+                "package check;\n\n" +
+                "public class VersionCheck {\n" +
+                "    final String name = Variant.NAME;\n" +
+                "}\n");
+    }
+
+
+    /**
+     * Writes a main class which prints the name of the variant it was compiled with, overridden for Java 11 and 8
+     */
+    private static void writeSources(File dir, boolean sourceDirectorySets) throws IOException {
+
+        write(new File(dir, "src/main/java/check/Main.java"),
+                "package check;\n\n" +
+                "public class Main {\n" +
+                "    public static void main(String[] args) {\n" +
+                "        System.out.println(Variant.NAME + \" 1\");\n" +
+                "    }\n" +
+                "}\n");
+        writeVariant(new File(dir, "src/main/java"), "main");
+        for(int version : new int[] { 11, 8 }) {
+            writeVariant(new File(dir, sourceDirectorySets ? "src/main/java" + version : "src/java" + version + "/java"), "j" + version);
+        }
+    }
+
+    private static void writeVariant(File sourceDir, String name) throws IOException {
+        write(new File(sourceDir, "check/Variant.java"),
+                "package check;\n\n" +
+                "class Variant {\n" +
+                "    static final String NAME = \"" + name + "\";\n" +
+                "}\n");
+    }
+
+    private static String run(Map<Integer, String> executables, int version, String... args) throws IOException, InterruptedException {
+
+        String executable = executables.get(version);
+        if(executable == null) {
+            throw new IllegalArgumentException("No Java " + version + " executable was given!");
+        }
+
+        String[] command = new String[args.length + 1];
+        command[0] = executable;
+        System.arraycopy(args, 0, command, 1, args.length);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        if(process.waitFor() != 0) {
+            throw new IllegalStateException("Java " + version + " exited with status " + process.exitValue() + ": " + out.toString("UTF-8").trim());
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    private static void expectOutput(String actual, String expected) {
+        if(!actual.equals(expected)) {
+            throw new IllegalStateException("Expected \"" + expected + "\", but got \"" + actual + "\"");
+        }
+    }
+
+    private static void expectFromCache(BuildResult result, String path) {
+
+        BuildTask task = result.task(path);
+        if(task == null || task.getOutcome() != TaskOutcome.FROM_CACHE) {
+            throw new IllegalStateException("Expected " + path + " to be loaded from the build cache, but it was "
+                    + (task == null ? "not run" : task.getOutcome()) + ":\n" + result.getOutput());
+        }
+    }
+
+    private static void expectContains(String output, String expected) {
+        if(!output.contains(expected)) {
+            throw new IllegalStateException("Expected the build output to contain \"" + expected + "\":\n" + output);
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void copySources(File from, File to) throws IOException {
+
+        File[] children = from.listFiles();
+        if(children == null) {
+            Files.createDirectories(to.getParentFile().toPath());
+            Files.copy(from.toPath(), to.toPath());
+            return;
+        }
+        for(File child : children) {
+            if(child.getName().equals("build") || child.getName().equals(".gradle")) continue;
+            copySources(child, new File(to, child.getName()));
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
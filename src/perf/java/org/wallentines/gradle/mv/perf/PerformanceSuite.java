@@ -0,0 +1,250 @@
+package org.wallentines.gradle.mv.perf;
+
+import org.gradle.testkit.runner.GradleRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the overhead the plugin adds to builds of generated projects of different sizes, in both source set and
+ * source directory set mode, with versions declared in each project or once with the settings plugin. For each
+ * project, this measures how long configuration takes, how long a build takes when everything is up-to-date, and how
+ * much heap the Gradle daemon uses once the build is configured. Results are written as JSON so they can be compared
+ * between commits.
+ * <p>
+ * Usage: {@code PerformanceSuite <work directory> <results file> [iterations] [scenarios]}
+ */
+public class PerformanceSuite {
+
+    private static final List<Scenario> SCENARIOS = Arrays.asList(
+            new Scenario("small", 10, 1, new int[] { 11 }, 1),
+            new Scenario("medium", 100, 10, new int[] { 11, 8 }, 2),
+            new Scenario("large", 400, 40, new int[] { 21, 11, 8 }, 4),
+            new Scenario("wide", 2, 1, new int[] { 11, 8 }, 500),
+
+            // A single project whose number of sources grows, with a tenth of them overridden by every version
+            new Scenario("sources1k", 1000, 100, new int[] { 21, 11, 8 }, 1),
+            new Scenario("sources10k", 10000, 1000, new int[] { 21, 11, 8 }, 1),
+            new Scenario("sources50k", 50000, 5000, new int[] { 21, 11, 8 }, 1)
+    );
+
+    private static final int DEFAULT_VERSION = 17;
+    private static final int WARM_UP_ITERATIONS = 2;
+    private static final int DAEMON_IDLE_TIMEOUT_MS = 10000;
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length < 2) {
+            System.err.println("Usage: PerformanceSuite <work directory> <results file> [iterations] [scenarios]");
+            System.exit(1);
+        }
+
+        File workDir = new File(args[0]);
+        File results = new File(args[1]);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        List<String> selected = args.length > 3 && !args[3].equals("all") ? Arrays.asList(args[3].split(",")) : null;
+
+        StringBuilder json = new StringBuilder("{\n  \"iterations\": ").append(iterations).append(",\n  \"scenarios\": [");
+        boolean first = true;
+
+        for(Scenario scenario : SCENARIOS) {
+            if(selected != null && !selected.contains(scenario.name)) continue;
+
+            // Each mode runs with versions declared per project, then with the settings plugin
+            for(int mode = 0 ; mode < 4 ; mode++) {
+
+                boolean sourceDirectorySets = mode >= 2;
+                boolean settingsPlugin = mode % 2 == 1;
+
+                String name = scenario.name + (sourceDirectorySets ? "-sourceDirectorySets" : "-sourceSets") + (settingsPlugin ? "-settingsPlugin" : "");
+                System.out.println("Running scenario " + name + "...");
+
+                File projectDir = new File(workDir, name);
+                scenario.generate(projectDir, sourceDirectorySets, settingsPlugin);
+                Result result = measure(projectDir, new File(workDir, "testkit/" + name), iterations);
+
+                json.append(first ? "\n" : ",\n");
+                json.append("    {\n");
+                json.append("      \"name\": \"").append(name).append("\",\n");
+                json.append("      \"sourceDirectorySets\": ").append(sourceDirectorySets).append(",\n");
+                json.append("      \"settingsPlugin\": ").append(settingsPlugin).append(",\n");
+                json.append("      \"sources\": ").append(scenario.sources).append(",\n");
+                json.append("      \"overrides\": ").append(scenario.overrides).append(",\n");
+                json.append("      \"versions\": ").append(scenario.versions.length + 1).append(",\n");
+                json.append("      \"subprojects\": ").append(scenario.subprojects).append(",\n");
+                json.append("      \"configurationMs\": ").append(stats(result.configurationMs)).append(",\n");
+                json.append("      \"upToDateBuildMs\": ").append(stats(result.upToDateMs)).append(",\n");
+                json.append("      \"heapUsedMb\": ").append(stats(result.heapUsedMb)).append("\n");
+                json.append("    }");
+                first = false;
+            }
+        }
+        json.append("\n  ]\n}\n");
+
+        Files.createDirectories(results.getAbsoluteFile().getParentFile().toPath());
+        Files.write(results.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + results);
+    }
+
+
+    private static Result measure(File projectDir, File testKitDir, int iterations) throws IOException {
+
+        // Each mode gets its own daemon, so modes measured later do not benefit from classes loaded, code compiled or
+        // heap grown by earlier ones. The daemon stops soon after the mode is measured, so idle daemons of earlier
+        // modes do not compete with later ones for memory.
+        Scenario.write(new File(testKitDir, "gradle.properties"), "org.gradle.daemon.idletimeout=" + DAEMON_IDLE_TIMEOUT_MS + "\n");
+        File metrics = new File(projectDir, "build/perf-metrics.txt");
+        GradleRunner runner = GradleRunner.create()
+                .withProjectDir(projectDir)
+                .withTestKitDir(testKitDir)
+                .withPluginClasspath();
+
+        // Warm up the daemon and bring every task up-to-date, then configure a few more times so the JIT settles
+        runner.withArguments("assemble", "--offline", "-I", "perf.init.gradle").build();
+        for(int i = 0 ; i < WARM_UP_ITERATIONS ; i++) {
+            runner.withArguments("help", "--offline", "-I", "perf.init.gradle").build();
+        }
+
+        Result out = new Result();
+        for(int i = 0 ; i < iterations ; i++) {
+
+            runner.withArguments("help", "--offline", "-I", "perf.init.gradle").build();
+            List<String> lines = Files.readAllLines(metrics.toPath(), StandardCharsets.UTF_8);
+            out.configurationMs.add(Double.parseDouble(lines.get(0)) / 1000000.0);
+            out.heapUsedMb.add(Double.parseDouble(lines.get(1)) / (1024.0 * 1024.0));
+
+            long start = System.nanoTime();
+            runner.withArguments("assemble", "--offline").build();
+            out.upToDateMs.add((System.nanoTime() - start) / 1000000.0);
+        }
+        return out;
+    }
+
+    private static String stats(List<Double> values) {
+
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        double mean = sorted.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+
+        return String.format(Locale.ROOT, "{ \"mean\": %.2f, \"min\": %.2f, \"max\": %.2f }",
+                mean, sorted.get(0), sorted.get(sorted.size() - 1));
+    }
+
+
+    private static class Result {
+        final List<Double> configurationMs = new ArrayList<>();
+        final List<Double> upToDateMs = new ArrayList<>();
+        final List<Double> heapUsedMb = new ArrayList<>();
+    }
+
+
+    private static class Scenario {
+
+        final String name;
+        final int sources;
+        final int overrides;
+        final int[] versions;
+        final int subprojects;
+
+        Scenario(String name, int sources, int overrides, int[] versions, int subprojects) {
+            this.name = name;
+            this.sources = sources;
+            this.overrides = overrides;
+            this.versions = versions;
+            this.subprojects = subprojects;
+        }
+
+        void generate(File dir, boolean sourceDirectorySets, boolean settingsPlugin) throws IOException {
+
+            StringBuilder versionList = new StringBuilder();
+            for(int version : versions) {
+                if(versionList.length() > 0) versionList.append(", ");
+                versionList.append(version);
+            }
+
+            // With the settings plugin, versions are declared once for every project
+            StringBuilder settings = new StringBuilder();
+            if(settingsPlugin) {
+                settings.append("plugins {\n" +
+                        "    id(\"org.wallentines.gradle-multi-version-settings\")\n" +
+                        "}\n" +
+                        "multiVersion {\n" +
+                        "    defaultVersion(" + DEFAULT_VERSION + ")\n" +
+                        "    additionalVersions(" + versionList + ")\n" +
+                        "}\n");
+            }
+            settings.append("rootProject.name = \"perf\"\n");
+            for(int i = 0 ; i < subprojects ; i++) {
+                settings.append("include(\"lib").append(i).append("\")\n");
+            }
+            write(new File(dir, "settings.gradle.kts"), settings.toString());
+            write(new File(dir, "build.gradle.kts"), "");
+
+            // Measures configuration time and the heap used once every project has been configured
+            write(new File(dir, "perf.init.gradle"),
+                    "def start = System.nanoTime()\n" +
+                    "gradle.projectsEvaluated {\n" +
+                    "    long elapsed = System.nanoTime() - start\n" +
+                    "    Runtime runtime = Runtime.getRuntime()\n" +
+                    "    System.gc()\n" +
+                    "    long heap = runtime.totalMemory() - runtime.freeMemory()\n" +
+                    "    File out = new File(gradle.rootProject.projectDir, 'build/perf-metrics.txt')\n" +
+                    "    out.parentFile.mkdirs()\n" +
+                    "    out.text = \"${elapsed}\\n${heap}\\n\"\n" +
+                    "}\n");
+
+            for(int i = 0 ; i < subprojects ; i++) {
+
+                File project = new File(dir, "lib" + i);
+                write(new File(project, "build.gradle.kts"),
+                        "plugins {\n" +
+                        "    id(\"org.wallentines.gradle-multi-version\")\n" +
+                        "}\n" +
+                        "java.toolchain.languageVersion.set(JavaLanguageVersion.of(" + DEFAULT_VERSION + "))\n" +
+                        "multiVersion {\n" +
+                        (sourceDirectorySets ? "    useSourceDirectorySets()\n" : "") +
+                        "    skipApiGuardianDependency()\n" +
+                        (settingsPlugin ? "" :
+                        "    defaultVersion(" + DEFAULT_VERSION + ")\n" +
+                        "    additionalVersions(" + versionList + ")\n") +
+                        "}\n");
+
+                String pkg = "lib" + i;
+                for(int source = 0 ; source < sources ; source++) {
+                    write(new File(project, "src/main/java/" + pkg + "/Source" + source + ".java"), getSource(pkg, source, "default"));
+                }
+                for(int version : versions) {
+                    String setDir = sourceDirectorySets ? "src/main/java" + version : "src/java" + version + "/java";
+                    for(int source = 0 ; source < overrides ; source++) {
+                        write(new File(project, setDir + "/" + pkg + "/Source" + source + ".java"), getSource(pkg, source, "java" + version));
+                    }
+                }
+            }
+        }
+
+        private static String getSource(String pkg, int index, String variant) {
+
+            // Each class references the previous one, so overrides affect the classes which depend on them
+            String previous = index == 0 ? "\"" + variant + "\"" : "Source" + (index - 1) + ".name()";
+            return "package " + pkg + ";\n\n" +
+                    "public class Source" + index + " {\n" +
+                    "    public static String name() {\n" +
+                    "        return " + previous + " + \"" + index + "\";\n" +
+                    "    }\n" +
+                    "}\n";
+        }
+
+        private static void write(File file, String contents) throws IOException {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}